@@ -16,14 +16,14 @@
  */
 package org.nuxeo.datademo;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.ColumnsFile;
+import org.nuxeo.datademo.tools.PackedStringTable;
+import org.nuxeo.datademo.tools.ResourcesCompiler;
 import org.nuxeo.datademo.tools.ToolsMisc;
 
 /**
@@ -36,6 +36,9 @@ import org.nuxeo.datademo.tools.ToolsMisc;
  * locks when <i>getting</i> a value (<code>getAName()</code>), there is no
  * thread safety, because we assume you, the caller ;->, will make sure you
  * don't try to get a value <i>after</if> having released the instance.
+ * <p>
+ * The words are read from the file compiled at build time (see <code>ResourcesCompiler</code>), or from the text
+ * file if it was not compiled.
  *
  * @since 7.1
  */
@@ -43,11 +46,11 @@ public class RandomCompanyName {
 
     private static Log log = LogFactory.getLog(RandomCompanyName.class);
 
-    protected static ArrayList<String> comps1 = null;
+    protected static PackedStringTable comps1 = null;
 
-    protected static ArrayList<String> comps2 = null;
+    protected static PackedStringTable comps2 = null;
 
-    protected static ArrayList<String> comps3 = null;
+    protected static PackedStringTable comps3 = null;
 
     protected static int maxForRandom = -1;
 
@@ -64,39 +67,22 @@ public class RandomCompanyName {
      */
     private RandomCompanyName() throws IOException {
 
-        comps1 = new ArrayList<String>();
-        comps2 = new ArrayList<String>();
-        comps3 = new ArrayList<String>();
-
-        int count = 0;
-
-        InputStream in = null;
-        try {
-            in = getClass().getResourceAsStream("/files/Companies.txt");
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(in));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                count += 1;
-                if (!line.isEmpty()) {
-                    String[] elements = line.split("\t");
-                    if (elements.length > 2) {
-                        comps1.add(elements[0]);
-                        comps2.add(elements[1]);
-                        comps3.add(elements[2]);
-                    } else {
-                        log.error("Line #" + count
-                                + " does not contain at least 3 elements");
-                    }
-                } else {
-                    log.error("Line #" + count + " is empty");
+        ColumnsFile compiled = ColumnsFile.loadResource(getClass(), "/files/Companies.bin");
+        if (compiled == null) {
+            InputStream in = null;
+            try {
+                in = getClass().getResourceAsStream("/files/Companies.txt");
+                compiled = ResourcesCompiler.compileCompanies(in);
+            } finally {
+                if (in != null) {
+                    in.close();
                 }
             }
-        } finally {
-            if (in != null) {
-                in.close();
-            }
         }
+
+        comps1 = compiled.getStrings(0);
+        comps2 = compiled.getStrings(1);
+        comps3 = compiled.getStrings(2);
         maxForRandom = comps1.size() - 1;
     }
 
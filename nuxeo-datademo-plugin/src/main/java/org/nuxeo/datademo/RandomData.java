@@ -123,6 +123,7 @@ public class RandomData {
         CoreSession session = ToolsMisc.getCoreSession(inDocs);
         TransactionInLoop transactionLoop = new TransactionInLoop(session,
                 commitModulo);
+        transactionLoop.setBatchSaves(true);
 
         counter = 0;
         transactionLoop.commitAndStartNewTransaction();
@@ -255,6 +256,7 @@ public class RandomData {
         CoreSession session = ToolsMisc.getCoreSession(inDocs);
         TransactionInLoop transactionLoop = new TransactionInLoop(session,
                 commitModulo);
+        transactionLoop.setBatchSaves(true);
 
         counter = 0;
         int i;
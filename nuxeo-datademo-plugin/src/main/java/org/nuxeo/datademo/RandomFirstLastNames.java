@@ -16,14 +16,13 @@
  */
 package org.nuxeo.datademo;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.ColumnsFile;
+import org.nuxeo.datademo.tools.PackedStringTable;
 import org.nuxeo.datademo.tools.ToolsMisc;
 
 /**
@@ -36,6 +35,11 @@ import org.nuxeo.datademo.tools.ToolsMisc;
  * <code>getALastName()</code>), there is no thread safety, because we assume
  * you, the caller ;->, will make sure you don't try to get a value
  * <i>after</if> having released the instance.
+ * <p>
+ * The names are stored in <code>PackedStringTable</code>s, read from the files compiled at build time (see
+ * <code>ResourcesCompiler</code>), or from the text files if they were not compiled. When generating a lot of names, use
+ * <code>appendFirstName()</code>/<code>appendLastName()</code> with a reused <code>StringBuilder</code>: they do not
+ * allocate anything.
  *
  * @since 7.1
  */
@@ -47,15 +51,15 @@ public class RandomFirstLastNames {
         MALE, FEMALE, ANY
     };
 
-    protected static ArrayList<String> firstNamesMale = null;
+    protected static PackedStringTable firstNamesMale = null;
 
     protected static int fnMaleMaxForRandom = -1;
 
-    protected static ArrayList<String> firstNamesFemale = null;
+    protected static PackedStringTable firstNamesFemale = null;
 
     protected static int fnFemaleMaxForRandom = -1;
 
-    protected static ArrayList<String> lastNames = null;
+    protected static PackedStringTable lastNames = null;
 
     protected static int lnMaxForRandom = -1;
 
@@ -65,27 +69,25 @@ public class RandomFirstLastNames {
 
     private static int usageCount = 0;
 
-    protected ArrayList<String> loadFile(String inLocalPath) throws IOException {
+    /*
+     * Uses the compiled file (.bin, see ResourcesCompiler) if any, else parses the text file
+     */
+    protected PackedStringTable loadFile(String inLocalPath) throws IOException {
+
+        ColumnsFile compiled = ColumnsFile.loadResource(getClass(), inLocalPath.replace(".txt", ".bin"));
+        if (compiled != null) {
+            return compiled.getStrings(0);
+        }
 
-        ArrayList<String> as = new ArrayList<String>();
-                
         InputStream in = null;
         try {
             in = getClass().getResourceAsStream(inLocalPath);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.isEmpty()) {
-                    as.add(line);
-                }
-            }
+            return PackedStringTable.load(in);
         } finally {
             if(in != null) {
                 in.close();
             }
         }
-
-        return as;
     }
 
     private RandomFirstLastNames() throws IOException {
@@ -185,4 +187,37 @@ public class RandomFirstLastNames {
     public String getALastName() {
         return lastNames.get(ToolsMisc.randomInt(0, lnMaxForRandom));
     }
+
+    /**
+     * Appends a random first name to <code>inSb</code>, without allocating a <code>String</code>
+     *
+     * @param inKind
+     * @param inSb
+     * @return <code>inSb</code>
+     * @since 8.10
+     */
+    public StringBuilder appendFirstName(GENDER inKind, StringBuilder inSb) {
+
+        switch (inKind) {
+        case MALE:
+            return firstNamesMale.appendTo(ToolsMisc.randomInt(0, fnMaleMaxForRandom), inSb);
+
+        case FEMALE:
+            return firstNamesFemale.appendTo(ToolsMisc.randomInt(0, fnFemaleMaxForRandom), inSb);
+
+        default:
+            return appendFirstName(ToolsMisc.randomInt(0, 1) == 0 ? GENDER.MALE : GENDER.FEMALE, inSb);
+        }
+    }
+
+    /**
+     * Appends a random last name to <code>inSb</code>, without allocating a <code>String</code>
+     *
+     * @param inSb
+     * @return <code>inSb</code>
+     * @since 8.10
+     */
+    public StringBuilder appendLastName(StringBuilder inSb) {
+        return lastNames.appendTo(ToolsMisc.randomInt(0, lnMaxForRandom), inSb);
+    }
 }
@@ -23,11 +23,13 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.ColumnsFile;
+import org.nuxeo.datademo.tools.PackedStringTable;
+import org.nuxeo.datademo.tools.ResourcesCompiler;
 import org.nuxeo.datademo.tools.ToolsMisc;
 
 /**
@@ -53,11 +55,17 @@ import org.nuxeo.datademo.tools.ToolsMisc;
  * <li>latitude-longitude: a dot is the decimal separator</li>
  * </ul>
  * <p>
+ * The default file is compiled at build time (files/US-zips.bin, see <code>ResourcesCompiler</code>), so it is loaded
+ * without parsing. The text file is used if it was not compiled.
+ * <p>
  * <p>
  * <b>WARNINGS</b>
  * <ul>
- * <li><i>Memory</i>: The whole file is read and stays in memory, creating as
- * many objects as you have "cells" in the file (plus some more for utilities)<br/>
+ * <li><i>Memory</i>: The whole file is read and stays in memory. It is kept
+ * in columns (coordinates in <code>double[]</code>, zips as a <code>String[]</code>,
+ * states and cities as indices in pools of distinct values), so the Strings
+ * are shared: only the returned <code>USZip</code> and its two boxed
+ * <code>Double</code> coordinates are allocated when getting a value<br/>
  * </li>
  * 
  * <li><i>Thread safety</i>: The class is thread safe <i>only</i> at
@@ -73,15 +81,26 @@ public class RandomUSZips {
 
     private static Log log = LogFactory.getLog(RandomUSZips.class);
 
-    protected static ArrayList<String> zips = null;
+    // Columns: one value per zip. The state and the city are indices in
+    // stateCodes and cityNames
+    protected static String[] zipCodes = null;
+
+    protected static int[] states = null;
+
+    protected static int[] cities = null;
+
+    protected static double[] latitudes = null;
 
-    protected static ArrayList<String> states = null;
+    protected static double[] longitudes = null;
 
-    protected static ArrayList<String> cities = null;
+    protected static String[] stateCodes = null;
 
-    protected static ArrayList<Double> latitudes = null;
+    protected static String[] cityNames = null;
 
-    protected static ArrayList<Double> longitudes = null;
+    // Zips per state, see the constructor
+    protected static int[] stateOffsets = null;
+
+    protected static int[] stateIndices = null;
 
     protected static int maxForRandom = -1;
 
@@ -93,8 +112,6 @@ public class RandomUSZips {
 
     private static final String LOCK = "RandomUSZips";
 
-    private static HashMap<String, ArrayList<Integer>> statesAndIndices = null;
-
     /**
      * Private constructor to handle the singleton.
      * 
@@ -102,101 +119,107 @@ public class RandomUSZips {
      */
     private RandomUSZips() throws IOException {
 
-        zips = new ArrayList<String>();
-        states = new ArrayList<String>();
-        cities = new ArrayList<String>();
-        latitudes = new ArrayList<Double>();
-        longitudes = new ArrayList<Double>();
-
-        int count = 0;
-        File f;
+        ColumnsFile compiled;
         if (pathToDataFile != null) {
-            f = new File(pathToDataFile);
+            File f = new File(pathToDataFile);
             try (BufferedReader reader = Files.newBufferedReader(f.toPath(),
                     StandardCharsets.UTF_8)) {
-                String line = null;
-                while ((line = reader.readLine()) != null) {
-                    count += 1;
-                    if (!line.isEmpty()) {
-                        String[] elements = line.split("\t");
-                        if (elements.length > 4) {
-                            zips.add(elements[0]);
-                            states.add(elements[1]);
-                            cities.add(elements[2]);
-                            latitudes.add(Double.valueOf(elements[3]));
-                            longitudes.add(Double.valueOf(elements[4]));
-                        } else {
-                            log.error("Line #" + count
-                                    + " does not contain at least 5 elements");
-                        }
-                    } else {
-                        log.error("Line #" + count + " is empty");
-                    }
-                }
+                compiled = ResourcesCompiler.compileUSZips(reader);
             }
-            
+
         } else {
-            String path = getClass().getResource("/files/US-zips.txt").getFile();
-            f = new File(path);
-            
-            InputStream in = null;
-            try {
-                in = getClass().getResourceAsStream("/files/US-zips.txt");
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                String line;
-                while ((line = reader.readLine()) != null) {
-
-                    count += 1;
-                    if (!line.isEmpty()) {
-                        String[] elements = line.split("\t");
-                        if (elements.length > 4) {
-                            zips.add(elements[0]);
-                            states.add(elements[1]);
-                            cities.add(elements[2]);
-                            latitudes.add(Double.valueOf(elements[3]));
-                            longitudes.add(Double.valueOf(elements[4]));
-                        } else {
-                            log.error("Line #" + count
-                                    + " does not contain at least 5 elements");
-                        }
-                    } else {
-                        log.error("Line #" + count + " is empty");
+            compiled = ColumnsFile.loadResource(getClass(), "/files/US-zips.bin");
+            if (compiled == null) {
+                InputStream in = null;
+                try {
+                    in = getClass().getResourceAsStream("/files/US-zips.txt");
+                    compiled = ResourcesCompiler.compileUSZips(
+                            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                } finally {
+                    if(in != null) {
+                        in.close();
                     }
                 }
-            } finally {
-                if(in != null) {
-                    in.close();
-                }
             }
-            
         }
-        maxForRandom = zips.size() - 1;
 
-        statesAndIndices = new HashMap<String, ArrayList<Integer>>();
-        for (int i = 0; i <= maxForRandom; i++) {
+        // The zip Strings are built once too, so getAZip() does not allocate
+        // a new String per call
+        PackedStringTable zips = compiled.getStrings(ResourcesCompiler.ZIPS_COL_ZIP);
+        zipCodes = new String[zips.size()];
+        for (int i = 0; i < zipCodes.length; i++) {
+            zipCodes[i] = zips.get(i);
+        }
+        states = compiled.getInts(ResourcesCompiler.ZIPS_COL_STATE);
+        cities = compiled.getInts(ResourcesCompiler.ZIPS_COL_CITY);
+        latitudes = compiled.getDoubles(ResourcesCompiler.ZIPS_COL_LATITUDE);
+        longitudes = compiled.getDoubles(ResourcesCompiler.ZIPS_COL_LONGITUDE);
+
+        // The pools are small (a few dozens states, ~17,000 cities): the
+        // Strings are built once, and shared by all the USZip returned
+        PackedStringTable statesPool = compiled.getStrings(ResourcesCompiler.ZIPS_COL_STATES_POOL);
+        stateCodes = new String[statesPool.size()];
+        for (int i = 0; i < stateCodes.length; i++) {
+            stateCodes[i] = statesPool.get(i);
+        }
+        PackedStringTable citiesPool = compiled.getStrings(ResourcesCompiler.ZIPS_COL_CITIES_POOL);
+        cityNames = new String[citiesPool.size()];
+        for (int i = 0; i < cityNames.length; i++) {
+            cityNames[i] = citiesPool.get(i);
+        }
+        maxForRandom = zipCodes.length - 1;
 
-            String theState = states.get(i);
-            ArrayList<Integer> indices = statesAndIndices.get(theState);
-            if (indices == null) {
-                indices = new ArrayList<Integer>();
-            }
-            indices.add(i);
-            statesAndIndices.put(theState, indices);
+        // Index of the zips per state (CSR): the indices of the zips of state
+        // #s are stateIndices[stateOffsets[s]] to
+        // stateIndices[stateOffsets[s + 1] - 1]
+        stateOffsets = new int[stateCodes.length + 1];
+        for (int i = 0; i <= maxForRandom; i++) {
+            stateOffsets[states[i] + 1] += 1;
+        }
+        for (int s = 0; s < stateCodes.length; s++) {
+            stateOffsets[s + 1] += stateOffsets[s];
+        }
+        stateIndices = new int[maxForRandom + 1];
+        int[] next = Arrays.copyOf(stateOffsets, stateCodes.length);
+        for (int i = 0; i <= maxForRandom; i++) {
+            stateIndices[next[states[i]]++] = i;
         }
 
     }
 
     protected void cleanup() {
 
-        zips = null;
+        zipCodes = null;
         states = null;
+        stateCodes = null;
         cities = null;
+        cityNames = null;
         latitudes = null;
         longitudes = null;
+        stateOffsets = null;
+        stateIndices = null;
 
         maxForRandom = -1;
     }
 
+    /*
+     * Dense id of the state (its index in stateCodes), or -1 if the state is
+     * not in the list. A linear search is enough for a few dozens codes, and
+     * allocates nothing.
+     */
+    protected int getStateId(String inState) {
+
+        if (inState != null) {
+            for (int s = 0; s < stateCodes.length; s++) {
+                if (stateCodes[s].equals(inState)) {
+                    return s;
+                }
+            }
+        }
+
+        return -1;
+    }
+
     /**
      * Get the singleton, with the default values
      */
@@ -289,8 +312,8 @@ public class RandomUSZips {
      */
     protected USZip getAZip(int idx) {
 
-        USZip zip = new USZip(zips.get(idx), states.get(idx), cities.get(idx),
-                latitudes.get(idx), longitudes.get(idx));
+        USZip zip = new USZip(zipCodes[idx], stateCodes[states[idx]],
+                cityNames[cities[idx]], latitudes[idx], longitudes[idx]);
 
         return zip;
     }
@@ -319,9 +342,10 @@ public class RandomUSZips {
      */
     public USZip getAZip(String inState) {
 
-        ArrayList<Integer> indices = statesAndIndices.get(inState);
-        if (indices != null) {
-            int idx = indices.get(ToolsMisc.randomInt(0, indices.size() - 1));
+        int stateId = getStateId(inState);
+        if (stateId >= 0) {
+            int idx = stateIndices[ToolsMisc.randomInt(stateOffsets[stateId],
+                    stateOffsets[stateId + 1] - 1)];
             return getAZip(idx);
         }
 
@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.ListenersDisabler;
+import org.nuxeo.datademo.tools.SuppressedEventsJournal;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.event.impl.EventBundleImpl;
+import org.nuxeo.ecm.core.event.impl.EventListenerDescriptor;
+import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Replays the events recorded in a <code>SuppressedEventsJournal</code>, by batches, calling only the listeners which
+ * were disabled when the events were recorded:
+ * <ul>
+ * <li>The synchronous listeners are called for each event. If the event is a "before" one
+ * (<code>beforeDocumentModification</code> for example), the document is then saved, so the changes made by the
+ * listener are stored</li>
+ * <li>The post-commit listeners receive one bundle per batch, after the commit</li>
+ * </ul>
+ * Saving a document raises the regular events of a modification: during the replay, the DublinCore listener and the
+ * replayed listeners are disabled with a scoped <code>ListenersDisabler</code>, so the modification dates are not set
+ * to the replay time and the replayed listeners are not called twice. The listeners supporting it ignore only the
+ * events of the replayed documents, the other ones are disabled for the whole server until the replay is done.
+ * <p>
+ * Documents deleted since the events were recorded are ignored. The journal file is deleted once replayed.
+ * <p>
+ * WARNING: The journal is a local file, written by the node which ran the update. On a cluster where works can run
+ * on any node, this work finds no journal on the other nodes and replays nothing (an error is logged): the
+ * <code>suppressedEventsReplay</code> queue must then be processed only by the node running the updates.
+ *
+ * @since 8.10
+ */
+public class SuppressedEventsReplayWorker extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(SuppressedEventsReplayWorker.class);
+
+    // The same as the one used in Workers-Queues.xml
+    public static final String CATEGORY_SUPPRESSED_EVENTS_REPLAY = "suppressedEventsReplay";
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    protected String journalPath;
+
+    protected ArrayList<String> listenerNames;
+
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    public SuppressedEventsReplayWorker(String inJournalPath, List<String> inListenerNames) {
+
+        journalPath = inJournalPath;
+        listenerNames = new ArrayList<String>(inListenerNames);
+    }
+
+    @Override
+    public String getTitle() {
+
+        return "Data Demo: Replay suppressed events";
+    }
+
+    @Override
+    public String getCategory() {
+
+        return CATEGORY_SUPPRESSED_EVENTS_REPLAY;
+    }
+
+    @Override
+    public void work() {
+
+        File journal = new File(journalPath);
+        if (!journal.exists()) {
+            log.error("Journal <" + journalPath + "> not found, nothing to replay. The journal is a local file: the "
+                    + "work must run on the node which ran the update");
+            return;
+        }
+
+        setStatus("Replaying suppressed events");
+        setProgress(Progress.PROGRESS_INDETERMINATE);
+
+        EventServiceImpl eventService = (EventServiceImpl) Framework.getService(EventService.class);
+        ArrayList<EventListenerDescriptor> listeners = new ArrayList<EventListenerDescriptor>();
+        for (String name : listenerNames) {
+            EventListenerDescriptor desc = eventService.getEventListener(name);
+            if (desc == null) {
+                log.warn("Listener <" + name + "> not found, its events are not replayed");
+            } else {
+                listeners.add(desc);
+            }
+        }
+
+        // Not the DublinCore listener, nor the replayed ones, when saving the documents
+        ListenersDisabler listenersDisabler = new ListenersDisabler(true);
+        listenersDisabler.addListener(ListenersDisabler.DUBLINCORELISTENER_NAME);
+        for (EventListenerDescriptor desc : listeners) {
+            listenersDisabler.addListener(desc.getName());
+        }
+        listenersDisabler.disableListeners();
+
+        long total = 0;
+        try {
+            initSession();
+            try (SuppressedEventsJournal.Reader reader = new SuppressedEventsJournal.Reader(journal)) {
+                List<String[]> entries;
+                while ((entries = reader.next(batchSize)).size() > 0) {
+                    replayBatch(entries, listeners, listenersDisabler);
+                    total += entries.size();
+                    setStatus("Replaying suppressed events: " + total + " replayed");
+                }
+            }
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot read the journal <" + journalPath + ">", e);
+        } finally {
+            cleanUp(true, null);
+            listenersDisabler.restoreListeners();
+        }
+
+        if (!journal.delete()) {
+            log.warn("Cannot delete the journal <" + journalPath + ">");
+        }
+
+        log.info("" + total + " suppressed events replayed");
+        setProgress(Progress.PROGRESS_100_PC);
+        setStatus("Replaying suppressed events: Done");
+    }
+
+    /*
+     * Loads the documents of the batch at once, calls the listeners, saves the documents modified by "before" events,
+     * commits, then gives the bundle to the post-commit listeners
+     */
+    protected void replayBatch(List<String[]> inEntries, List<EventListenerDescriptor> inListeners,
+            ListenersDisabler inListenersDisabler) {
+
+        ArrayList<DocumentRef> refs = new ArrayList<DocumentRef>();
+        for (String[] entry : inEntries) {
+            refs.add(new IdRef(entry[0]));
+        }
+        HashMap<String, DocumentModel> docs = new HashMap<String, DocumentModel>();
+        for (DocumentModel doc : session.getDocuments(refs.toArray(new DocumentRef[refs.size()]))) {
+            docs.put(doc.getId(), doc);
+        }
+
+        HashMap<EventListenerDescriptor, EventBundleImpl> bundles = new HashMap<EventListenerDescriptor, EventBundleImpl>();
+        LinkedHashMap<String, DocumentModel> toSave = new LinkedHashMap<String, DocumentModel>();
+        for (String[] entry : inEntries) {
+            DocumentModel doc = docs.get(entry[0]);
+            if (doc == null) {
+                continue;
+            }
+
+            String eventName = entry[1];
+            DocumentEventContext ctx = new DocumentEventContext(session, session.getPrincipal(), doc);
+            Event event = ctx.newEvent(eventName);
+            for (EventListenerDescriptor desc : inListeners) {
+                if (!desc.acceptEvent(eventName)) {
+                    continue;
+                }
+                if (desc.isPostCommit()) {
+                    EventBundleImpl bundle = bundles.get(desc);
+                    if (bundle == null) {
+                        bundle = new EventBundleImpl();
+                        bundles.put(desc, bundle);
+                    }
+                    bundle.push(event);
+                } else {
+                    desc.asEventListener().handleEvent(event);
+                    if (eventName.startsWith("before")) {
+                        toSave.put(doc.getId(), doc);
+                    }
+                }
+            }
+        }
+
+        if (toSave.size() > 0) {
+            for (DocumentModel doc : toSave.values()) {
+                inListenersDisabler.prepareDocument(doc);
+            }
+            session.saveDocuments(toSave.values().toArray(new DocumentModel[toSave.size()]));
+        }
+        session.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        for (EventListenerDescriptor desc : bundles.keySet()) {
+            desc.asPostCommitListener().handleEvent(bundles.get(desc));
+        }
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int inValue) {
+        batchSize = inValue > 0 ? inValue : DEFAULT_BATCH_SIZE;
+    }
+
+}
@@ -17,32 +17,47 @@
 package org.nuxeo.datademo;
 
 import java.io.Serializable;
+import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.DateFieldsPlanCache;
 import org.nuxeo.datademo.tools.DocumentsCallback;
 import org.nuxeo.datademo.tools.DocumentsWalker;
 import org.nuxeo.datademo.tools.ListenersDisabler;
+import org.nuxeo.datademo.tools.SQLDatesShifter;
+import org.nuxeo.datademo.tools.SuppressedEventsJournal;
+import org.nuxeo.datademo.tools.ThresholdCommitPolicy;
+import org.nuxeo.datademo.tools.TokenBucket;
 import org.nuxeo.datademo.tools.ToolsMisc;
+import org.nuxeo.datademo.tools.TransactionInLoop;
 import org.nuxeo.datademo.tools.XPathFieldInfo;
+import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.DocumentModelList;
-import org.nuxeo.ecm.core.schema.DocumentType;
-import org.nuxeo.ecm.core.schema.SchemaManager;
-import org.nuxeo.ecm.core.schema.types.ComplexType;
-import org.nuxeo.ecm.core.schema.types.Field;
-import org.nuxeo.ecm.core.schema.types.ListType;
-import org.nuxeo.ecm.core.schema.types.Schema;
-import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.query.sql.NXQL;
 import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.Work.Progress;
 import org.nuxeo.ecm.core.work.api.WorkManager;
 import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
 import org.nuxeo.runtime.api.Framework;
@@ -80,6 +95,48 @@ import org.nuxeo.runtime.transaction.TransactionHelper;
  * <p>
  * This means that multiple levels of Complex fields are not handled, only the first level. Also, if this class is
  * called from a worker (a <code>UpdateAllDatesWorker</code>), it will update the status of the worker
+ * <p>
+ * Each document type is queried on its <code>ecm:primaryType</code> (see <code>buildTypeQuery()</code>), so a document
+ * is updated only once even when its type inherits from other types having date fields.
+ * <p>
+ * PARALLEL MODE: When <code>setThreads()</code> is called with a value > 1, the documents of each type are split in
+ * disjoint <code>ecm:uuid</code> ranges (see <code>ToolsMisc.buildUUIDRangeConditions()</code>), and the ranges are
+ * processed by this number of threads, each thread using its own <code>CoreSession</code> and its own transactions.
+ * <p>
+ * SQL MODE: When <code>setUseSQL(true)</code> is called and the repository is a VCS one, the date fields are shifted
+ * with a few <code>UPDATE</code> statements run directly on the database (see <code>SQLDatesShifter</code>), and the
+ * caches are cleared. Only the date fields stored in complex fields are then updated document per document. No
+ * listener is called for the fields updated in SQL.
+ * <p>
+ * PROJECTION MODE: When <code>setUseProjection(true)</code> is called, the types whose date fields are all simple,
+ * top-level fields are not walked with full <code>DocumentModel</code>s. A projection query (
+ * <code>queryAndFetch</code>) reads only <code>ecm:uuid</code> and the date columns, page after page (ordered by
+ * <code>ecm:uuid</code>, so no cursor is kept open across the commits), and only the shifted properties are written
+ * back. Writing them still loads each document by its id, so the gain is limited to the query. Types with lists of
+ * dates or dates in complex fields are still walked document per document.
+ * <p>
+ * RESUMABLE MODE: When <code>setResumable(true)</code> is called, types are processed in alphabetical order and the
+ * documents of each type in <code>ecm:uuid</code> order. The last processed type and id are saved in an
+ * <code>UpdateAllDatesCheckpoint</code>, in the same transaction as the updated documents. If the run is interrupted
+ * (node restart for example), the next resumable run continues after the checkpoint instead of shifting the same
+ * documents twice, and it refuses to run with a different number of days. This mode is available only when the update
+ * is done in the current thread and without SQL.
+ * <p>
+ * THROTTLING: When <code>setMaxDocsPerSecond()</code> is called with a value > 0, the number of documents saved per
+ * second (by all the threads) is limited, so the update can run beside the regular activity of the server. Whatever
+ * the mode, a transaction is committed every <code>docsPerTransaction</code> documents or when it lasts more than half
+ * of the transaction timeout (see <code>ThresholdCommitPolicy</code>).
+ * <p>
+ * SCOPED LISTENERS: When <code>setScopedListeners(true)</code> is called, the DublinCore listener (and the other
+ * listeners to disable which support it) ignores only the events of the updated documents, instead of being disabled
+ * for the whole server during the update.
+ * <p>
+ * REPLAY: When <code>setReplaySuppressedEvents(true)</code> is called, the modification events of the updated
+ * documents are recorded for the disabled listeners (except the DublinCore one, whose job is precisely what must not
+ * happen), and replayed by batches in a <code>SuppressedEventsReplayWorker</code> after the update.
+ * <p>
+ * RETRIES: When <code>setMaxRetries()</code> is called with a value > 0, a failing transaction is retried, then the
+ * documents which cannot be saved are skipped and the others are committed (see <code>getFailedDocIds()</code>).
  *
  * @since 7.2
  */
@@ -93,16 +150,21 @@ public class UpdateAllDates {
 
     public static final int DEFAULT_LOG_EVENY_N_DOCS = 500;
 
+    public static final int DEFAULT_THREADS = 1;
+
+    // Delay between two logs while waiting for the partition threads to end
+    public static final int THREADS_TERMINATION_CHECK_S = 10;
+
     protected CoreSession session;
 
     protected int diffInDays = 0;
 
     protected long diffInDaysInMs = 0;
 
-    protected long updateDocCount = 0;
-
     protected long totalUpdatedDocs = 0;
 
+    protected long expectedTotalDocs = 0;
+
     protected ListenersDisabler listenersDisabler = null;
 
     protected ArrayList<String> listenersToDisable = null;
@@ -117,6 +179,32 @@ public class UpdateAllDates {
 
     protected int logEveryNDocs = DEFAULT_LOG_EVENY_N_DOCS;
 
+    protected int threads = DEFAULT_THREADS;
+
+    protected boolean useSQL = false;
+
+    protected boolean useProjection = false;
+
+    protected boolean resumable = false;
+
+    protected int prefetchPages = 0;
+
+    protected long targetPageDurationMs = 0;
+
+    protected double maxDocsPerSecond = 0;
+
+    protected TokenBucket rateLimiter = null;
+
+    protected int maxRetries = 0;
+
+    protected boolean scopedListeners = false;
+
+    protected boolean replaySuppressedEvents = false;
+
+    protected ArrayList<String> failedDocIds = null;
+
+    protected UpdateAllDatesCheckpoint checkpoint = null;
+
     protected boolean doLog = true;
 
     protected AbstractWork worker = null;
@@ -125,8 +213,20 @@ public class UpdateAllDates {
 
         UpdateAllDatesWorker worker = new UpdateAllDatesWorker(inDays);
         worker.setListenersToDisable(inListenersToDisable);
+        runInWorker(worker);
+    }
+
+    /**
+     * Schedules <code>inWorker</code>, already configured (threads, slices, SQL, ...), if no update is already running
+     * or scheduled
+     *
+     * @param inWorker
+     * @since 8.10
+     */
+    public static void runInWorker(UpdateAllDatesWorker inWorker) {
+
         WorkManager workManager = Framework.getLocalService(WorkManager.class);
-        workManager.schedule(worker, Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+        workManager.schedule(inWorker, Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
     }
 
     /**
@@ -184,17 +284,23 @@ public class UpdateAllDates {
 
         long documentCount = 0;
 
+        CoreSession callbackSession;
+
         ArrayList<XPathFieldInfo> fieldInfos;
 
         protected DocumentsCallbackImpl(ArrayList<XPathFieldInfo> inFieldsInfo) {
+            this(session, inFieldsInfo);
+        }
+
+        protected DocumentsCallbackImpl(CoreSession inSession, ArrayList<XPathFieldInfo> inFieldsInfo) {
+            callbackSession = inSession;
             fieldInfos = inFieldsInfo;
         }
 
         @Override
         public ReturnStatus callback(List<DocumentModel> inDocs) {
 
-            updateDocCount = 0;
-            updateDocs(inDocs, fieldInfos);
+            updateDocs(callbackSession, inDocs, fieldInfos);
 
             pageCount += 1;
             documentCount += inDocs.size();
@@ -252,92 +358,513 @@ public class UpdateAllDates {
 
         logIfCanLog("\n--------------------\nIncrease all dates by " + diffInDays + " days\n--------------------");
 
+        checkpoint = null;
+        if (resumable) {
+            if (threads > 1 || useSQL) {
+                log.warn("Resumable mode is not available with several threads or with SQL: no checkpoint is saved");
+            } else {
+                checkpoint = new UpdateAllDatesCheckpoint(session);
+                checkpoint.begin(diffInDays);
+            }
+        }
+        if (maxRetries > 0 && checkpoint != null) {
+            log.warn("Retries are not available in resumable mode: a failing document stops the update");
+        }
+        failedDocIds = new ArrayList<String>();
+
         disableListeners();
+        try {
+            totalUpdatedDocs = 0;
+            LinkedHashMap<String, ArrayList<XPathFieldInfo>> plan = buildDatesPlan();
+            if (useSQL) {
+                plan = shiftWithSQL(plan);
+            }
+            if (checkpoint != null) {
+                plan = new LinkedHashMap<String, ArrayList<XPathFieldInfo>>(
+                        new TreeMap<String, ArrayList<XPathFieldInfo>>(plan));
+            }
 
-        totalUpdatedDocs = 0;
-        SchemaManager sm = Framework.getLocalService(SchemaManager.class);
-        DocumentType[] allTypes = sm.getDocumentTypes();
-        for (DocumentType dt : allTypes) {
-            Collection<Schema> schemas = dt.getSchemas();
-            ArrayList<XPathFieldInfo> fieldsInfo = new ArrayList<XPathFieldInfo>();
-
-            for (Schema schema : schemas) {
-                for (Field field : schema.getFields()) {
-
-                    Type t = field.getType();
-                    if (t.isSimpleType() || t.isListType()) {
-                        String typeName = ToolsMisc.getCoreFieldType(t);
-                        // If ToolsMisc.getCoreFieldType() could find a "date"
-                        // core type, we know the field is not complex or
-                        // complex-multivalued => We can handle it.
-                        //
-                        // If it does not return "date", we will check complex
-                        // types in the else clauses
-                        if (typeName.equals("date")) {
-                            fieldsInfo.add(new XPathFieldInfo("" + field.getName(), t.isListType(), "date"));
-                        } else if (t.isListType()) {
-
-                            // Check if complex-multivalued
-                            Type subType = ((ListType) t).getFieldType();
-                            if (subType.isComplexType()) {
-                                ComplexType ct = (ComplexType) subType;
-                                String parentXPath = field.getName().getPrefixedName();
-                                Map<String, String[]> subFieldsXPathsAndTypes = ToolsMisc.getComplexFieldSubFieldsInfoPro(
-                                        ct, parentXPath);
-                                for (String oneXPath : subFieldsXPathsAndTypes.keySet()) {
-                                    String[] subInfos = subFieldsXPathsAndTypes.get(oneXPath);
-                                    if (subInfos[0].equals("date")) {
-                                        XPathFieldInfo xpfi = new XPathFieldInfo(oneXPath, subInfos[1].equals("1"),
-                                                "date");
-                                        xpfi.setComplexListParentXPath(parentXPath);
-                                        fieldsInfo.add(xpfi);
-                                    }
-                                }
-                            }
-                        }
-                    } else if (t.isComplexType()) {
-                        ComplexType ct = (ComplexType) t;
-                        Map<String, String[]> subFieldsXPathsAndTypes = ToolsMisc.getComplexFieldSubFieldsInfoPro(ct,
-                                field.getName().getPrefixedName());
-                        for (String oneXPath : subFieldsXPathsAndTypes.keySet()) {
-                            String[] subInfos = subFieldsXPathsAndTypes.get(oneXPath);
-                            if (subInfos[0].equals("date")) {
-                                fieldsInfo.add(new XPathFieldInfo(oneXPath, subInfos[1].equals("1"), "date"));
-                            }
-                        }
+            HashMap<String, Long> counts = countDocumentsPerType(plan.keySet());
+            expectedTotalDocs = 0;
+            for (String typeName : plan.keySet()) {
+                expectedTotalDocs += getCount(counts, typeName);
+            }
+            logIfCanLog("" + expectedTotalDocs + " documents to update");
+            setWorkerProgress(0);
+
+            for (String typeName : plan.keySet()) {
+
+                if (getCount(counts, typeName) == 0) {
+                    continue;
+                }
+
+                String condition = null;
+                if (checkpoint != null) {
+                    if (checkpoint.isDone(typeName)) {
+                        continue;
                     }
+                    condition = checkpoint.getResumeCondition(typeName);
+                }
+
+                ArrayList<XPathFieldInfo> fieldsInfo = plan.get(typeName);
+
+                logIfCanLog("Update dates for documents of type: " + typeName);
+                setWorkerStatus("Updating dates for '" + typeName + "'...");
+
+                long count;
+                if (threads > 1) {
+                    count = updateTypeInParallel(typeName, fieldsInfo);
+                } else {
+                    count = updateDocuments(session, typeName, condition, fieldsInfo);
                 }
+
+                logIfCanLog("" + count + " '" + typeName + "' documents updated");
             }
 
-            if (fieldsInfo.size() > 0) {
+            logIfCanLog("\n--------------------\nAll documents updated\n--------------------");
+            if (failedDocIds.size() > 0) {
+                log.warn(failedDocIds.size() + " document(s) could not be updated and were skipped: " + failedDocIds);
+            }
 
-                String nxql = "SELECT * FROM " + dt.getName();
+            if (checkpoint != null) {
+                checkpoint.remove();
+                checkpoint = null;
+            }
+        } finally {
+            // The listeners disabled for the whole server are reference counted node-wide: never leak them
+            restoreListeners();
+        }
+    }
 
-                DocumentModelList docs = session.query(nxql, 1);
-                if (docs.size() == 0) {
-                    continue;
+    /**
+     * Returns the date fields of each document type. Types with no date field are not in the result. The fields are
+     * computed once per schema and then cached, see <code>DateFieldsPlanCache</code>.
+     *
+     * @return a map whose key is the name of the type and the value is the list of its date fields
+     * @since 8.10
+     */
+    public LinkedHashMap<String, ArrayList<XPathFieldInfo>> buildDatesPlan() {
+
+        return DateFieldsPlanCache.getDatesPlan();
+    }
+
+    /**
+     * Shifts the dates with SQL statements, if the repository is a VCS one, and returns the part of
+     * <code>inPlan</code> which must still be handled document per document (the date fields in complex fields). If
+     * the repository is not a VCS one, nothing is done and <code>inPlan</code> is returned.
+     *
+     * @param inPlan
+     * @return the remaining plan
+     * @since 8.10
+     */
+    public LinkedHashMap<String, ArrayList<XPathFieldInfo>> shiftWithSQL(
+            LinkedHashMap<String, ArrayList<XPathFieldInfo>> inPlan) {
+
+        if (!SQLDatesShifter.isSQLRepository(session.getRepositoryName())) {
+            log.warn("Repository <" + session.getRepositoryName() + "> is not a VCS repository, cannot use SQL");
+            return inPlan;
+        }
+
+        logIfCanLog("Shifting dates with SQL statements...");
+        setWorkerStatus("Updating dates with SQL statements...");
+
+        SQLDatesShifter shifter = new SQLDatesShifter(session.getRepositoryName(), diffInDays);
+        long count = shifter.run();
+
+        logIfCanLog("" + count + " rows updated with SQL statements");
+
+        LinkedHashMap<String, ArrayList<XPathFieldInfo>> remaining = new LinkedHashMap<String, ArrayList<XPathFieldInfo>>();
+        for (String typeName : inPlan.keySet()) {
+            ArrayList<XPathFieldInfo> complexFields = SQLDatesShifter.getComplexDateFields(inPlan.get(typeName));
+            if (complexFields.size() > 0) {
+                remaining.put(typeName, complexFields);
+            }
+        }
+
+        return remaining;
+    }
+
+    /**
+     * Returns the number of documents of each type of <code>inTypes</code> (proxies excluded), using one aggregated
+     * <code>SELECT COUNT(ecm:uuid)</code> query per type: no document nor row is fetched. Types without documents are
+     * not in the result.
+     *
+     * @param inTypes
+     * @return a map whose key is the type and the value is the number of documents
+     * @since 8.10
+     */
+    public HashMap<String, Long> countDocumentsPerType(Collection<String> inTypes) {
+
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+
+        for (String type : inTypes) {
+            long count = 0;
+            IterableQueryResult result = session.queryAndFetch("SELECT COUNT(" + NXQL.ECM_UUID
+                    + ") FROM Document WHERE " + buildTypeWhereClause(type, null), NXQL.NXQL);
+            try {
+                Iterator<Map<String, Serializable>> it = result.iterator();
+                if (it.hasNext()) {
+                    // Only one column, named after the aggregate
+                    Serializable value = it.next().values().iterator().next();
+                    count = value == null ? 0 : ((Number) value).longValue();
+                }
+            } finally {
+                result.close();
+            }
+            if (count > 0) {
+                counts.put(type, count);
+            }
+        }
+
+        return counts;
+    }
+
+    protected static long getCount(HashMap<String, Long> inCounts, String inType) {
+
+        Long count = inCounts.get(inType);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Updates the date fields of all the documents returned by <code>inNxql</code>, in the current thread, with the
+     * current session. Listeners are not disabled/restored by this method, it is the caller's responsibility.
+     *
+     * @param inNxql
+     * @param inFieldsInfo
+     * @return the number of updated documents
+     * @since 8.10
+     */
+    public long updateDocuments(String inNxql, ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl(inFieldsInfo);
+        DocumentsWalker dw = new DocumentsWalker(session, inNxql, docsPerPage);
+        dw.setUseKeyset(true);
+        dw.setPrefetchPages(prefetchPages);
+        dw.setAdaptivePageSize(targetPageDurationMs);
+        dw.runForEachPage(cb);
+
+        return cb.getDocumentCount();
+    }
+
+    /**
+     * Updates the date fields of all the documents returned by <code>inNxql</code> (a slice of an
+     * <code>UpdateAllDatesWorker</code> in fan out mode), disabling the listeners before and restoring them after, as
+     * <code>run()</code> does. So the scoped listeners, replay, throttling and retries settings are applied.
+     *
+     * @param inNxql
+     * @param inFieldsInfo
+     * @return the number of updated documents
+     * @since 8.10
+     */
+    public long updateSlice(String inNxql, ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        failedDocIds = new ArrayList<String>();
+
+        disableListeners();
+        try {
+            return updateDocuments(inNxql, inFieldsInfo);
+        } finally {
+            restoreListeners();
+            if (failedDocIds.size() > 0) {
+                log.warn(failedDocIds.size() + " document(s) could not be updated and were skipped: " + failedDocIds);
+            }
+        }
+    }
+
+    /**
+     * Updates the date fields of the documents of type <code>inType</code> (restricted to <code>inCondition</code> if
+     * it is not empty), using the projection mode if it is enabled and possible for <code>inFieldsInfo</code>, else
+     * walking the documents.
+     *
+     * @param inSession
+     * @param inType
+     * @param inCondition
+     * @param inFieldsInfo
+     * @return the number of updated documents
+     * @since 8.10
+     */
+    protected long updateDocuments(CoreSession inSession, String inType, String inCondition,
+            ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        if (useProjection && canUseProjection(inFieldsInfo)) {
+            return updateDocumentsWithProjection(inSession, inType, inCondition, inFieldsInfo);
+        }
+
+        // Keyset pagination: ordered by ecm:uuid (as expected by the checkpoint), and stable while documents are saved
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl(inSession, inFieldsInfo);
+        DocumentsWalker dw = new DocumentsWalker(inSession, buildTypeQuery(inType, inCondition), docsPerPage);
+        dw.setUseKeyset(true);
+        dw.setPrefetchPages(prefetchPages);
+        dw.setAdaptivePageSize(targetPageDurationMs);
+        dw.runForEachPage(cb);
+
+        return cb.getDocumentCount();
+    }
+
+    /**
+     * Returns <code>true</code> if all the fields of <code>inFieldsInfo</code> are simple date fields which are not in
+     * a complex field, so their values can be read with a projection query.
+     *
+     * @param inFieldsInfo
+     * @return
+     * @since 8.10
+     */
+    public static boolean canUseProjection(ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        if (inFieldsInfo == null || inFieldsInfo.size() == 0) {
+            return false;
+        }
+
+        for (XPathFieldInfo oneInfo : inFieldsInfo) {
+            if (!oneInfo.isSimple() || oneInfo.isInComplexField()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Updates the documents of type <code>inType</code> with projection queries: Only <code>ecm:uuid</code> and the
+     * date fields are fetched, page per page. Pages are ordered by <code>ecm:uuid</code> and each page starts after the
+     * last id of the previous one, so the query result is closed before the documents are saved and the transactions
+     * committed. Documents having none of the dates set are not returned by the query.
+     * <p>
+     * Each document is then loaded by its id (its schemas are lazy loaded, only the ones holding the dates are read)
+     * and only the shifted properties are set before saving it. So the gain is on the query only: the documents are
+     * still loaded and saved one by one, as the listeners (and the scoped/replay modes) expect a
+     * <code>DocumentModel</code>. The SQL mode is the one writing the dates without loading any document.
+     *
+     * @param inSession
+     * @param inType
+     * @param inCondition
+     * @param inFieldsInfo must contain only simple fields, see <code>canUseProjection()</code>
+     * @return the number of updated documents
+     * @since 8.10
+     */
+    public long updateDocumentsWithProjection(CoreSession inSession, String inType, String inCondition,
+            ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        String select = NXQL.ECM_UUID;
+        String notNull = "";
+        for (XPathFieldInfo oneInfo : inFieldsInfo) {
+            select += ", " + oneInfo.getXPath();
+            notNull += (notNull.isEmpty() ? "" : " OR ") + oneInfo.getXPath() + " IS NOT NULL";
+        }
+        String nxqlBase = "SELECT " + select + " FROM Document WHERE " + buildTypeWhereClause(inType, inCondition)
+                + " AND (" + notNull + ")";
+
+        long count = 0;
+        String lastId = null;
+        ArrayList<Map<String, Serializable>> rows;
+        do {
+            String nxql = DocumentsWalker.buildKeysetQuery(nxqlBase, lastId) + " LIMIT " + docsPerPage;
+
+            rows = new ArrayList<Map<String, Serializable>>();
+            IterableQueryResult result = inSession.queryAndFetch(nxql, NXQL.NXQL);
+            try {
+                for (Map<String, Serializable> row : result) {
+                    rows.add(new HashMap<String, Serializable>(row));
+                }
+            } finally {
+                result.close();
+            }
+
+            if (rows.size() > 0) {
+                updateRows(inSession, inType, rows, inFieldsInfo);
+                count += rows.size();
+                lastId = (String) rows.get(rows.size() - 1).get(NXQL.ECM_UUID);
+            }
+
+        } while (rows.size() == docsPerPage);
+
+        return count;
+    }
+
+    /*
+     * Same as updateDocs(), but the values come from a projection query: the document is loaded by its id and only the
+     * shifted dates are set
+     */
+    protected void updateRows(CoreSession inSession, String inType, List<Map<String, Serializable>> inRows,
+            ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        TransactionInLoop til = newTransactionInLoop(inSession);
+        til.commitAndStartNewTransaction();
+
+        String id = null;
+        int uncommitted = 0;
+        for (Map<String, Serializable> oneRow : inRows) {
+
+            id = (String) oneRow.get(NXQL.ECM_UUID);
+            DocumentModel doc = inSession.getDocument(new IdRef(id));
+            for (XPathFieldInfo oneInfo : inFieldsInfo) {
+                Calendar c = (Calendar) oneRow.get(oneInfo.getXPath());
+                if (c != null) {
+                    updateDate(c);
+                    doc.setPropertyValue(oneInfo.getXPath(), c);
                 }
+            }
+            til.saveDocument(prepareDocument(doc));
+            uncommitted += 1;
+
+            til.incrementCounter();
+            if (til.shouldCommit()) {
+
+                saveCheckpoint(inType, id);
+                commitAndCount(til, inType, uncommitted);
+                uncommitted = 0;
+            }
+        }
+
+        if (id != null) {
+            saveCheckpoint(inType, id);
+        }
+        commitAndCount(til, inType, uncommitted);
+        addFailedDocIds(til.getFailedDocIds());
+    }
+
+    /**
+     * Returns the query used to fetch the documents of type <code>inType</code>. If <code>inCondition</code> is not
+     * empty, it is added to the WHERE clause.
+     * <p>
+     * The query uses <code>ecm:primaryType</code> and not <code>SELECT * FROM inType</code>, because the latter also
+     * returns the documents of the sub-types, which would then be updated several times (once for their type, once for
+     * each parent type having date fields). Each document type already holds all its date fields, including the ones
+     * of the schemas inherited from its parent types, so every document is handled exactly once. Proxies are also
+     * excluded, since updating a proxy updates its target document.
+     *
+     * @param inType
+     * @param inCondition
+     * @return the NXQL query
+     * @since 8.10
+     */
+    public String buildTypeQuery(String inType, String inCondition) {
 
-                logIfCanLog("Update dates for documents of type: " + dt.getName());
-                setWorkerStatus("Updating dates for '" + dt.getName() + "'...");
+        return "SELECT * FROM Document WHERE " + buildTypeWhereClause(inType, inCondition);
+    }
+
+    protected String buildTypeWhereClause(String inType, String inCondition) {
+
+        String where = "ecm:primaryType = '" + inType + "' AND ecm:isProxy = 0";
+        if (StringUtils.isNotBlank(inCondition)) {
+            where += " AND " + inCondition;
+        }
+
+        return where;
+    }
+
+    /**
+     * Splits the documents of type <code>inType</code> in disjoint <code>ecm:uuid</code> ranges and updates them using
+     * <code>threads</code> threads. Each thread opens its own <code>CoreSession</code> and handles its own
+     * transactions.
+     * <p>
+     * The current transaction is committed before starting the threads, and a new one is started once they are all
+     * done. If a partition fails, the other threads are interrupted, and this method returns only once they are all
+     * terminated (so the caller does not restore the listeners while they are still saving documents).
+     *
+     * @param inType
+     * @param inFieldsInfo
+     * @return the number of updated documents
+     * @since 8.10
+     */
+    protected long updateTypeInParallel(String inType, ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        String repositoryName = session.getRepositoryName();
+        Principal principal = session.getPrincipal();
+
+        List<String> conditions = ToolsMisc.buildUUIDRangeConditions(threads);
+        ArrayList<Future<Long>> futures = new ArrayList<Future<Long>>();
+
+        TransactionHelper.commitOrRollbackTransaction();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (String condition : conditions) {
+                futures.add(executor.submit(
+                        new PartitionUpdater(repositoryName, principal, inType, condition, inFieldsInfo)));
+            }
+
+            long count = 0;
+            for (Future<Long> future : futures) {
+                count += future.get();
+            }
+            return count;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while updating the dates of '" + inType + "'", e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error while updating the dates of '" + inType + "'", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor, inType);
+            TransactionHelper.startTransaction();
+        }
+    }
 
-                DocumentsCallbackImpl cb = new DocumentsCallbackImpl(fieldsInfo);
-                DocumentsWalker dw = new DocumentsWalker(session, nxql, docsPerPage);
-                dw.runForEachPage(cb);
+    /*
+     * Waits until all the threads of inExecutor are terminated, even if the current thread is interrupted (it is then
+     * interrupted again once they are)
+     */
+    protected void awaitTermination(ExecutorService inExecutor, String inType) {
 
-                logIfCanLog("" + cb.getDocumentCount() + " '" + dt.getName() + "' documents updated");
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (inExecutor.awaitTermination(THREADS_TERMINATION_CHECK_S, TimeUnit.SECONDS)) {
+                    break;
+                }
+                log.warn("Waiting for the threads updating the dates of '" + inType + "' to end");
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Updates the documents of one partition, in its own thread, session and transactions.
+     *
+     * @since 8.10
+     */
+    protected class PartitionUpdater implements Callable<Long> {
+
+        String repositoryName;
+
+        Principal principal;
+
+        String docType;
+
+        String condition;
+
+        ArrayList<XPathFieldInfo> fieldsInfo;
+
+        protected PartitionUpdater(String inRepositoryName, Principal inPrincipal, String inDocType,
+                String inCondition, ArrayList<XPathFieldInfo> inFieldsInfo) {
+            repositoryName = inRepositoryName;
+            principal = inPrincipal;
+            docType = inDocType;
+            condition = inCondition;
+            fieldsInfo = inFieldsInfo;
+        }
 
-        logIfCanLog("\n--------------------\nAll documents updated\n--------------------");
+        @Override
+        public Long call() throws Exception {
 
-        restoreListeners();
+            TransactionHelper.startTransaction();
+            try (CoreSession partitionSession = CoreInstance.openCoreSession(repositoryName, principal)) {
+                return updateDocuments(partitionSession, docType, condition, fieldsInfo);
+            } finally {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
     }
 
     protected void disableListeners() {
 
         if (listenersDisabler == null) {
-            listenersDisabler = new ListenersDisabler();
+            listenersDisabler = new ListenersDisabler(scopedListeners);
             listenersDisabler.addListener(ListenersDisabler.DUBLINCORELISTENER_NAME);
         }
         if (listenersToDisable != null) {
@@ -345,18 +872,52 @@ public class UpdateAllDates {
                 listenersDisabler.addListener(name);
             }
         }
+        if (replaySuppressedEvents) {
+            // Never the DublinCore listener: replaying it would set the modification dates to now
+            ArrayList<String> captured = new ArrayList<String>();
+            for (String name : listenersDisabler.getHandledListeners()) {
+                if (!ListenersDisabler.DUBLINCORELISTENER_NAME.equals(name)) {
+                    captured.add(name);
+                }
+            }
+            listenersDisabler.setCapturedListeners(captured.toArray(new String[captured.size()]));
+        }
 
         logIfCanLog("Disabling listeners...");
         listenersDisabler.disableListeners();
         logIfCanLog("Disabled listeners: " + listenersDisabler.getHandledListeners().toString());
     }
 
+    /*
+     * In scoped mode, flags the document so the disabled listeners ignore its events. In replay mode, records the
+     * events to replay
+     */
+    protected DocumentModel prepareDocument(DocumentModel inDoc) {
+
+        ListenersDisabler disabler = listenersDisabler;
+        if (disabler != null) {
+            disabler.prepareDocument(inDoc);
+            disabler.captureDocument(inDoc);
+        }
+
+        return inDoc;
+    }
+
     protected void restoreListeners() {
 
         logIfCanLog("Restoring the listeners...");
 
         if (listenersDisabler != null) {
             listenersDisabler.restoreListeners();
+            SuppressedEventsJournal journal = listenersDisabler.takeJournal();
+            if (journal != null) {
+                logIfCanLog("Scheduling the replay of " + journal.getCount() + " suppressed events");
+                SuppressedEventsReplayWorker replay = new SuppressedEventsReplayWorker(
+                        journal.getFile().getAbsolutePath(),
+                        new ArrayList<String>(listenersDisabler.getCapturedListeners()));
+                WorkManager workManager = Framework.getLocalService(WorkManager.class);
+                workManager.schedule(replay, Scheduling.ENQUEUE, true);
+            }
             listenersDisabler.reset();
             listenersDisabler = null;
         }
@@ -377,38 +938,101 @@ public class UpdateAllDates {
      */
     protected void updateDocs(List<DocumentModel> inDocs, ArrayList<XPathFieldInfo> inFieldsInfo) {
 
-        TransactionHelper.commitOrRollbackTransaction();
-        TransactionHelper.startTransaction();
+        updateDocs(session, inDocs, inFieldsInfo);
+    }
+
+    /**
+     * Same as <code>updateDocs(List<DocumentModel>, ArrayList<XPathFieldInfo>)</code>, saving the documents with
+     * <code>inSession</code> (used when several threads update the documents)
+     *
+     * @param inSession
+     * @param inDocs
+     * @param inFieldsInfo
+     * @since 8.10
+     */
+    protected void updateDocs(CoreSession inSession, List<DocumentModel> inDocs,
+            ArrayList<XPathFieldInfo> inFieldsInfo) {
 
-        int count = 0;
+        TransactionInLoop til = newTransactionInLoop(inSession);
+        til.commitAndStartNewTransaction();
+
+        DocumentModel lastDoc = null;
+        int uncommitted = 0;
         for (DocumentModel oneDoc : inDocs) {
 
             for (XPathFieldInfo oneInfo : inFieldsInfo) {
                 updateDate(oneDoc, oneInfo);
             }
-            oneDoc = session.saveDocument(oneDoc);
+            til.saveDocument(prepareDocument(oneDoc));
+            lastDoc = oneDoc;
+            uncommitted += 1;
 
-            count += 1;
-            if ((count % docsPerTransaction) == 0) {
+            til.incrementCounter();
+            if (til.shouldCommit()) {
 
-                TransactionHelper.commitOrRollbackTransaction();
-                TransactionHelper.startTransaction();
+                saveCheckpoint(oneDoc.getType(), oneDoc.getId());
+                commitAndCount(til, oneDoc.getType(), uncommitted);
+                uncommitted = 0;
             }
+        }
 
-            updateDocCount += 1;
-            totalUpdatedDocs += 1;
-            if ((updateDocCount % logEveryNDocs) == 0) {
-                String theType = "'" + oneDoc.getType() + "'";
-                logIfCanLog("" + updateDocCount + " " + theType + ", (total docs: " + totalUpdatedDocs + ")");
+        if (lastDoc != null) {
+            saveCheckpoint(lastDoc.getType(), lastDoc.getId());
+            commitAndCount(til, lastDoc.getType(), uncommitted);
+        } else {
+            til.commitAndStartNewTransaction();
+        }
+        addFailedDocIds(til.getFailedDocIds());
 
-                setWorkerStatus("Updating dates for " + theType + ": " + totalUpdatedDocs + " updated");
+    }
 
-            }
+    /*
+     * The documents are saved by batches of docsPerTransaction (one saveDocuments() call right before each commit). The
+     * transaction is also committed if it lasts too long, and when maxDocsPerSecond is set, all the threads share the
+     * same rate limiter. In retry mode (not available with a checkpoint, which must be committed with the documents),
+     * the failing documents are skipped.
+     */
+    protected TransactionInLoop newTransactionInLoop(CoreSession inSession) {
+
+        TransactionInLoop til = new TransactionInLoop(inSession, docsPerTransaction);
+        til.setBatchSaves(true);
+        til.setCommitPolicy(new ThresholdCommitPolicy(docsPerTransaction));
+        til.setRateLimiter(getRateLimiter());
+        if (checkpoint == null) {
+            til.setMaxRetries(maxRetries);
         }
 
-        TransactionHelper.commitOrRollbackTransaction();
-        TransactionHelper.startTransaction();
+        return til;
+    }
+
+    protected synchronized void addFailedDocIds(List<String> inIds) {
+
+        if (failedDocIds != null) {
+            failedDocIds.addAll(inIds);
+        }
+    }
+
+    protected synchronized TokenBucket getRateLimiter() {
+
+        if (maxDocsPerSecond > 0 && rateLimiter == null) {
+            rateLimiter = new TokenBucket(maxDocsPerSecond);
+        }
+
+        return rateLimiter;
+    }
+
+    /**
+     * Saves the checkpoint, if the run is resumable. Must be called just before committing the transaction
+     *
+     * @param inType
+     * @param inLastId
+     * @since 8.10
+     */
+    protected void saveCheckpoint(String inType, String inLastId) {
 
+        if (checkpoint != null) {
+            checkpoint.save(inType, inLastId);
+        }
     }
 
     /**
@@ -481,6 +1105,42 @@ public class UpdateAllDates {
         }
     }
 
+    /**
+     * Commits the <code>inSaved</code> documents saved with <code>til</code> since the previous commit, then adds the
+     * ones actually committed (the documents skipped in retry mode are not) to the total, which drives the progress.
+     *
+     * @param til
+     * @param inType
+     * @param inSaved
+     * @since 8.10
+     */
+    protected void commitAndCount(TransactionInLoop til, String inType, int inSaved) {
+
+        int failedBefore = til.getFailedDocIds().size();
+        til.commitAndStartNewTransaction();
+        int committed = inSaved - (til.getFailedDocIds().size() - failedBefore);
+
+        long before;
+        long total;
+        synchronized (this) {
+            before = totalUpdatedDocs;
+            totalUpdatedDocs += committed;
+            total = totalUpdatedDocs;
+        }
+        // The total grows by a whole window: log when it crosses a multiple of logEveryNDocs
+        if (total / logEveryNDocs != before / logEveryNDocs) {
+            String theType = "'" + inType + "'";
+            logIfCanLog("" + theType + ", (total docs: " + total + ")");
+
+            setWorkerStatus("Updating dates for " + theType + ": " + total + " updated");
+            setWorkerProgress(total);
+        }
+    }
+
+    public synchronized long getTotalUpdatedDocs() {
+        return totalUpdatedDocs;
+    }
+
     protected void updateDate(Calendar c) {
 
         // This one will have potential problems with daylight saving and can
@@ -504,6 +1164,19 @@ public class UpdateAllDates {
 
     }
 
+    /**
+     * Updates the progress of the worker, if any, when the number of documents to update is known
+     *
+     * @param inUpdatedDocs
+     * @since 8.10
+     */
+    protected void setWorkerProgress(long inUpdatedDocs) {
+
+        if (worker != null && expectedTotalDocs > 0) {
+            worker.setProgress(new Progress(Math.min(inUpdatedDocs, expectedTotalDocs), expectedTotalDocs));
+        }
+    }
+
     public void setDocsPerTransaction(int inNewValue) {
         docsPerTransaction = inNewValue > 0 ? inNewValue : DEFAULT_DOCS_PER_TRANSACTION;
     }
@@ -529,6 +1202,168 @@ public class UpdateAllDates {
         docsPerPage = inNewValue > 0 ? inNewValue : DEFAULT_DOCS_PER_PAGE;
     }
 
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Number of threads used to update the documents of each type. A value <= 1 means the update is done in the
+     * current thread, with the current session.
+     *
+     * @param inNewValue
+     * @since 8.10
+     */
+    public void setThreads(int inNewValue) {
+        threads = inNewValue > 1 ? inNewValue : DEFAULT_THREADS;
+    }
+
+    public boolean getUseSQL() {
+        return useSQL;
+    }
+
+    /**
+     * When <code>true</code>, and if the repository is a VCS one, the dates are shifted with SQL statements (see
+     * <code>SQLDatesShifter</code>)
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setUseSQL(boolean inValue) {
+        useSQL = inValue;
+    }
+
+    public boolean getUseProjection() {
+        return useProjection;
+    }
+
+    /**
+     * When <code>true</code>, the types having only simple date fields are updated using projection queries, fetching
+     * only the dates instead of full documents (see <code>updateDocumentsWithProjection()</code>)
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setUseProjection(boolean inValue) {
+        useProjection = inValue;
+    }
+
+    public boolean getResumable() {
+        return resumable;
+    }
+
+    /**
+     * When <code>true</code>, the progress is saved in an <code>UpdateAllDatesCheckpoint</code> and an interrupted
+     * run is resumed after the last updated document.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setResumable(boolean inValue) {
+        resumable = inValue;
+    }
+
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Number of pages of documents fetched in advance by a background thread while the current page is updated (see
+     * <code>DocumentsWalker#setPrefetchPages()</code>). <code>0</code> (default) means no prefetch.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setPrefetchPages(int inValue) {
+        prefetchPages = inValue > 0 ? inValue : 0;
+    }
+
+    public boolean getScopedListeners() {
+        return scopedListeners;
+    }
+
+    /**
+     * When <code>true</code>, the listeners which support it are disabled only for the documents updated by this
+     * object, not for the whole server (see <code>ListenersDisabler</code>, scoped mode)
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setScopedListeners(boolean inValue) {
+        scopedListeners = inValue;
+    }
+
+    public boolean getReplaySuppressedEvents() {
+        return replaySuppressedEvents;
+    }
+
+    /**
+     * When <code>true</code>, the document modification events not handled by the disabled listeners are recorded
+     * and replayed in a <code>SuppressedEventsReplayWorker</code> once the listeners are restored. The DublinCore
+     * listener is never replayed.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setReplaySuppressedEvents(boolean inValue) {
+        replaySuppressedEvents = inValue;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * When > 0, a transaction which fails is retried this number of times, then the failing documents are isolated
+     * and skipped (see <code>TransactionInLoop#setMaxRetries()</code>). Not available in resumable mode.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setMaxRetries(int inValue) {
+        maxRetries = inValue > 0 ? inValue : 0;
+    }
+
+    /**
+     * Returns the ids of the documents skipped during the last <code>run()</code> (see <code>setMaxRetries()</code>)
+     *
+     * @since 8.10
+     */
+    public synchronized List<String> getFailedDocIds() {
+        return failedDocIds == null ? new ArrayList<String>() : new ArrayList<String>(failedDocIds);
+    }
+
+    public double getMaxDocsPerSecond() {
+        return maxDocsPerSecond;
+    }
+
+    /**
+     * Limits the number of documents saved per second (see <code>TokenBucket</code>). <code>0</code> (default) means no
+     * limit. Must be called before <code>run()</code>.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setMaxDocsPerSecond(double inValue) {
+        maxDocsPerSecond = inValue > 0 ? inValue : 0;
+        rateLimiter = null;
+    }
+
+    public long getTargetPageDurationMs() {
+        return targetPageDurationMs;
+    }
+
+    /**
+     * When > 0, the number of documents per page (<code>setDocsPerPage()</code> being the initial value) is adapted so
+     * fetching and updating a page takes about <code>inValue</code> ms (see <code>AdaptivePageSizer</code>).
+     * <code>0</code> (default) means a fixed page size.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setTargetPageDurationMs(long inValue) {
+        targetPageDurationMs = inValue > 0 ? inValue : 0;
+    }
+
     public boolean getDoLog() {
         return doLog;
     }
@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.PathRef;
+
+/**
+ * Persistent checkpoint of a resumable <code>UpdateAllDates</code> run. It is stored in a
+ * <code>DataDemoCheckpoint</code> document, at the root of the repository, and holds:
+ * <ul>
+ * <li>The number of days added to the dates (a resumed run must use the same value)</li>
+ * <li>The last processed type</li>
+ * <li>The last processed <code>ecm:uuid</code> of this type (documents are processed in <code>ecm:uuid</code>
+ * order)</li>
+ * </ul>
+ * The checkpoint is saved in the same transaction as the updated documents (see <code>save()</code>), so after a
+ * restart, it tells exactly which documents were already updated. It is removed once the run is done.
+ *
+ * @since 8.10
+ */
+public class UpdateAllDatesCheckpoint {
+
+    private static final Log log = LogFactory.getLog(UpdateAllDatesCheckpoint.class);
+
+    public static final String DOC_TYPE = "DataDemoCheckpoint";
+
+    public static final String DEFAULT_NAME = "update-all-dates-checkpoint";
+
+    public static final String XPATH_DOC_TYPE = "ddcp:docType";
+
+    public static final String XPATH_LAST_ID = "ddcp:lastId";
+
+    public static final String XPATH_DIFF_IN_DAYS = "ddcp:diffInDays";
+
+    protected CoreSession session;
+
+    protected String name;
+
+    protected DocumentModel checkpointDoc = null;
+
+    public UpdateAllDatesCheckpoint(CoreSession inSession) {
+
+        this(inSession, DEFAULT_NAME);
+    }
+
+    public UpdateAllDatesCheckpoint(CoreSession inSession, String inName) {
+
+        session = inSession;
+        name = inName;
+    }
+
+    /**
+     * Loads the existing checkpoint, or creates a new one if there is none.
+     * <p>
+     * If a checkpoint exists for a different number of days, a <code>NuxeoException</code> is thrown: resuming would
+     * shift the dates already updated and the others by different offsets. The checkpoint must then be removed
+     * explicitly (see <code>remove()</code>).
+     *
+     * @param inDiffInDays
+     * @return <code>true</code> if an existing checkpoint was loaded (the run is resumed)
+     * @since 8.10
+     */
+    public boolean begin(int inDiffInDays) {
+
+        PathRef ref = new PathRef("/" + name);
+        if (session.exists(ref)) {
+            checkpointDoc = session.getDocument(ref);
+            long days = getDiffInDays();
+            if (days != inDiffInDays) {
+                throw new NuxeoException("Checkpoint <" + name + "> was saved for " + days
+                        + " days, cannot resume it with " + inDiffInDays + " days");
+            }
+            log.warn("Resuming from checkpoint <" + name + ">: type " + getDocType() + ", last id " + getLastId());
+            return true;
+        }
+
+        checkpointDoc = session.createDocumentModel("/", name, DOC_TYPE);
+        checkpointDoc.setPropertyValue(XPATH_DIFF_IN_DAYS, (long) inDiffInDays);
+        checkpointDoc = session.createDocument(checkpointDoc);
+        session.save();
+
+        return false;
+    }
+
+    /**
+     * Saves the last processed document. The caller commits the transaction, so the checkpoint and the updated
+     * documents are committed (or rolled back) together.
+     *
+     * @param inDocType
+     * @param inLastId
+     * @since 8.10
+     */
+    public void save(String inDocType, String inLastId) {
+
+        checkDoc();
+
+        checkpointDoc.setPropertyValue(XPATH_DOC_TYPE, inDocType);
+        checkpointDoc.setPropertyValue(XPATH_LAST_ID, inLastId);
+        checkpointDoc = session.saveDocument(checkpointDoc);
+    }
+
+    /**
+     * Removes the checkpoint (when the run is done, or to force a new run after a failure)
+     *
+     * @since 8.10
+     */
+    public void remove() {
+
+        PathRef ref = new PathRef("/" + name);
+        if (session.exists(ref)) {
+            session.removeDocument(ref);
+            session.save();
+        }
+        checkpointDoc = null;
+    }
+
+    /**
+     * Returns the condition to add to the query of <code>inDocType</code>:
+     * <ul>
+     * <li><code>null</code> if the type must be fully processed</li>
+     * <li>A condition on <code>ecm:uuid</code> if it is the type being processed when the checkpoint was saved</li>
+     * </ul>
+     * Types are processed in alphabetical order, so a type before the checkpoint type was already fully processed: see
+     * <code>isDone()</code>
+     *
+     * @param inDocType
+     * @return the condition, or <code>null</code>
+     * @since 8.10
+     */
+    public String getResumeCondition(String inDocType) {
+
+        String lastId = getLastId();
+        if (inDocType.equals(getDocType()) && lastId != null) {
+            return "ecm:uuid > '" + lastId + "'";
+        }
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if all the documents of <code>inDocType</code> were processed before the checkpoint
+     *
+     * @param inDocType
+     * @return
+     * @since 8.10
+     */
+    public boolean isDone(String inDocType) {
+
+        String checkpointType = getDocType();
+        return checkpointType != null && inDocType.compareTo(checkpointType) < 0;
+    }
+
+    public String getDocType() {
+        checkDoc();
+        return (String) checkpointDoc.getPropertyValue(XPATH_DOC_TYPE);
+    }
+
+    public String getLastId() {
+        checkDoc();
+        return (String) checkpointDoc.getPropertyValue(XPATH_LAST_ID);
+    }
+
+    public long getDiffInDays() {
+        checkDoc();
+        Long days = (Long) checkpointDoc.getPropertyValue(XPATH_DIFF_IN_DAYS);
+        return days == null ? 0 : days;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    protected void checkDoc() {
+
+        if (checkpointDoc == null) {
+            throw new RuntimeException("You must call begin() before using the checkpoint.");
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.XPathFieldInfo;
+import org.nuxeo.ecm.core.work.AbstractWork;
+
+/**
+ * Updates the dates of one slice of documents (one type, or a range of ids of one type). Scheduled by an
+ * <code>UpdateAllDatesWorker</code> when it runs in "fan out" mode, see
+ * <code>UpdateAllDatesWorker#setSlicesPerType()</code>.
+ * <p>
+ * The listeners are disabled and restored by <code>UpdateAllDates#updateSlice()</code>, with the settings of the
+ * coordinator (scoped listeners, replay of the suppressed events, retries, throttling). Slices can run at the same
+ * time on the same node: the listeners disabled for the whole server are reference counted (see
+ * <code>ListenersDisabler</code>), so they are restored by the last slice ending. The maximum number of documents per
+ * second applies to each slice.
+ * <p>
+ * Each slice records its outcome (see <code>removeOutcome()</code>), so the coordinator knows if it succeeded: the
+ * <code>WorkManager</code> gives the same state for a completed slice and for a failed or cancelled one. The outcomes
+ * are kept in memory, so the coordinator sees them only when the slices run on its node.
+ *
+ * @since 8.10
+ */
+public class UpdateAllDatesSliceWorker extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(UpdateAllDatesSliceWorker.class);
+
+    // The same as the one used in Workers-Queues.xml
+    public static final String CATEGORY_UPDATE_ALL_DATES_SLICES = "updateAllDatesSlices";
+
+    // Outcome of the slices (true if it succeeded), by work id, until the coordinator reads it
+    protected static final ConcurrentHashMap<String, Boolean> outcomes = new ConcurrentHashMap<String, Boolean>();
+
+    protected int days;
+
+    protected String docType;
+
+    protected String nxql;
+
+    protected ArrayList<XPathFieldInfo> fieldsInfo;
+
+    protected ArrayList<String> disabledListeners;
+
+    protected boolean scopedListeners = false;
+
+    protected boolean replaySuppressedEvents = false;
+
+    protected double maxDocsPerSecond = 0;
+
+    protected int maxRetries = 0;
+
+    public UpdateAllDatesSliceWorker(int inDays, String inDocType, String inNxql,
+            ArrayList<XPathFieldInfo> inFieldsInfo) {
+
+        days = inDays;
+        docType = inDocType;
+        nxql = inNxql;
+        fieldsInfo = inFieldsInfo;
+    }
+
+    @Override
+    public String getTitle() {
+
+        return "Data Demo: Update All Dates (" + docType + ")";
+    }
+
+    @Override
+    public String getCategory() {
+
+        return CATEGORY_UPDATE_ALL_DATES_SLICES;
+    }
+
+    @Override
+    public void work() {
+
+        log.debug("Updating dates for " + nxql);
+
+        setStatus("Updating dates for '" + docType + "'");
+        setProgress(Progress.PROGRESS_INDETERMINATE);
+
+        boolean succeeded = false;
+        try {
+            initSession();
+            UpdateAllDates updateDates = new UpdateAllDates(session, days);
+            updateDates.setWorker(this);
+            updateDates.setDoLog(false);
+            updateDates.setScopedListeners(scopedListeners);
+            updateDates.setReplaySuppressedEvents(replaySuppressedEvents);
+            updateDates.setMaxDocsPerSecond(maxDocsPerSecond);
+            updateDates.setMaxRetries(maxRetries);
+            if (disabledListeners != null) {
+                for (String name : disabledListeners) {
+                    updateDates.addListenerToDisable(name);
+                }
+            }
+            long count = updateDates.updateSlice(nxql, fieldsInfo);
+
+            log.debug("" + count + " '" + docType + "' documents updated for " + nxql);
+            succeeded = true;
+
+        } finally {
+            outcomes.put(getId(), succeeded);
+            cleanUp(true, null);
+        }
+
+        setProgress(Progress.PROGRESS_100_PC);
+        setStatus("Updating dates for '" + docType + "': Done");
+    }
+
+    /**
+     * Returns <code>true</code> if the slice <code>inWorkId</code> succeeded, and forgets its outcome. Returns
+     * <code>false</code> if it failed, or if it did not run on this node (cancelled, or run by another node).
+     *
+     * @param inWorkId
+     * @return true if the slice succeeded
+     * @since 8.10
+     */
+    public static boolean removeOutcome(String inWorkId) {
+        return Boolean.TRUE.equals(outcomes.remove(inWorkId));
+    }
+
+    public void setListenersToDisable(ArrayList<String> inListeners) {
+        disabledListeners = inListeners;
+    }
+
+    public void setScopedListeners(boolean inValue) {
+        scopedListeners = inValue;
+    }
+
+    public void setReplaySuppressedEvents(boolean inValue) {
+        replaySuppressedEvents = inValue;
+    }
+
+    public void setMaxDocsPerSecond(double inValue) {
+        maxDocsPerSecond = inValue;
+    }
+
+    public void setMaxRetries(int inValue) {
+        maxRetries = inValue;
+    }
+
+}
@@ -18,13 +18,37 @@ package org.nuxeo.datademo;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.datademo.tools.ToolsMisc;
+import org.nuxeo.datademo.tools.XPathFieldInfo;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.EventContextImpl;
 import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.Work.State;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
- *
+ * Runs an <code>UpdateAllDates</code> in a worker. Once done, the <code>updateAllDatesDone</code> event is fired.
+ * <p>
+ * FAN OUT MODE: When <code>setSlicesPerType()</code> is called with a value > 0, this worker is only a coordinator: it
+ * computes the date fields plan once, then schedules one <code>UpdateAllDatesSliceWorker</code> per document type
+ * (value is 1) or per <code>ecm:uuid</code> range of each type (value > 1, see
+ * <code>ToolsMisc.buildUUIDRangeConditions()</code>). The slices are scheduled in the
+ * <code>updateAllDatesSlices</code> queue, whose number of threads can be changed in the configuration (see
+ * Workers-Queues.xml). The listeners, scoped listeners, replay, retries and throttling settings are passed to each
+ * slice (the throttling then applies per slice). The resumable mode is not available. The coordinator then waits for
+ * all the slices to be done, and fires the event only if they all succeeded (see
+ * <code>UpdateAllDatesSliceWorker#removeOutcome()</code>). Else, the status of the worker gives the number of failed
+ * slices.
  *
  * @since 7.3
  */
@@ -41,6 +65,11 @@ public class UpdateAllDatesWorker extends AbstractWork {
 
     public static final String UPDATE_ALL_DATES_DONE_STATUS = "Updating all dates: Done";
 
+    public static final String UPDATE_ALL_DATES_FAILED_STATUS = "Updating all dates: Failed";
+
+    // Delay between two checks of the slices state, in fan out mode
+    public static final int SLICES_CHECK_DELAY_MS = 1000;
+
     protected UpdateAllDates updateDates;
 
     protected int days = -1;
@@ -49,6 +78,24 @@ public class UpdateAllDatesWorker extends AbstractWork {
 
     protected ArrayList<String> disabledListeners;
 
+    protected int threads = UpdateAllDates.DEFAULT_THREADS;
+
+    protected int slicesPerType = 0;
+
+    protected boolean useSQL = false;
+
+    protected boolean useProjection = false;
+
+    protected boolean resumable = false;
+
+    protected double maxDocsPerSecond = 0;
+
+    protected int maxRetries = 0;
+
+    protected boolean scopedListeners = false;
+
+    protected boolean replaySuppressedEvents = false;
+
     public UpdateAllDatesWorker(int inDays) {
 
         days = inDays;
@@ -65,6 +112,12 @@ public class UpdateAllDatesWorker extends AbstractWork {
         return "Data Demo: Update All Dates";
     }
 
+    @Override
+    public String getCategory() {
+
+        return CATEGORY_UPDATE_ALL_DATES;
+    }
+
     @Override
     public void work() {
 
@@ -73,6 +126,7 @@ public class UpdateAllDatesWorker extends AbstractWork {
         setStatus("Updating all dates");
         setProgress(Progress.PROGRESS_INDETERMINATE);
 
+        int failedSlices = 0;
         try {
             initSession();
             if(lastUpdate == null) {
@@ -81,23 +135,183 @@ public class UpdateAllDatesWorker extends AbstractWork {
                 updateDates = new UpdateAllDates(session, lastUpdate);
             }
             updateDates.setWorker(this);
+            updateDates.setThreads(threads);
+            updateDates.setUseSQL(useSQL);
+            updateDates.setUseProjection(useProjection);
+            updateDates.setResumable(resumable);
+            updateDates.setMaxDocsPerSecond(maxDocsPerSecond);
+            updateDates.setMaxRetries(maxRetries);
+            updateDates.setScopedListeners(scopedListeners);
+            updateDates.setReplaySuppressedEvents(replaySuppressedEvents);
             if(disabledListeners != null) {
                 for(String name : disabledListeners) {
                     updateDates.addListenerToDisable(name);
                 }
             }
-            updateDates.run();
+            if (slicesPerType > 0) {
+                failedSlices = runSlices();
+            } else {
+                updateDates.run();
+            }
+
+            if (failedSlices == 0) {
+                fireDoneEvent();
+            }
 
         } finally {
             cleanUp(true, null);
         }
 
+        if (failedSlices > 0) {
+            log.error("<Updating all dates>: " + failedSlices + " slice(s) failed");
+            setStatus(UPDATE_ALL_DATES_FAILED_STATUS + " (" + failedSlices + " slices)");
+            return;
+        }
         setProgress(Progress.PROGRESS_100_PC);
         setStatus(UPDATE_ALL_DATES_DONE_STATUS);
     }
 
+    /**
+     * Schedules one <code>UpdateAllDatesSliceWorker</code> per slice, then waits until they are all done.
+     *
+     * @return the number of slices which did not succeed
+     * @since 8.10
+     */
+    protected int runSlices() {
+
+        if (days < 1) {
+            log.error("Date received is in the future or less than one day: No update done");
+            return 0;
+        }
+        if (resumable) {
+            log.warn("Resumable mode is not available in slices mode: no checkpoint is saved");
+        }
+
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        ArrayList<String> sliceIds = new ArrayList<String>();
+
+        LinkedHashMap<String, ArrayList<XPathFieldInfo>> plan = updateDates.buildDatesPlan();
+        if (useSQL) {
+            plan = updateDates.shiftWithSQL(plan);
+        }
+        HashMap<String, Long> counts = updateDates.countDocumentsPerType(plan.keySet());
+        for (String typeName : plan.keySet()) {
+
+            if (!counts.containsKey(typeName)) {
+                continue;
+            }
+
+            List<String> conditions = new ArrayList<String>();
+            if (slicesPerType > 1) {
+                conditions = ToolsMisc.buildUUIDRangeConditions(slicesPerType);
+            } else {
+                conditions.add(null);
+            }
+
+            for (String condition : conditions) {
+                UpdateAllDatesSliceWorker slice = new UpdateAllDatesSliceWorker(days, typeName,
+                        updateDates.buildTypeQuery(typeName, condition), plan.get(typeName));
+                slice.setListenersToDisable(disabledListeners);
+                slice.setScopedListeners(scopedListeners);
+                slice.setReplaySuppressedEvents(replaySuppressedEvents);
+                slice.setMaxDocsPerSecond(maxDocsPerSecond);
+                slice.setMaxRetries(maxRetries);
+                workManager.schedule(slice);
+                sliceIds.add(slice.getId());
+            }
+        }
+
+        log.info("<Updating all dates>: " + sliceIds.size() + " slices scheduled");
+
+        // Don't keep a transaction open while waiting
+        TransactionHelper.commitOrRollbackTransaction();
+        int failed = 0;
+        try {
+            int total = sliceIds.size();
+            while (!sliceIds.isEmpty()) {
+                for (int i = sliceIds.size() - 1; i >= 0; i--) {
+                    // A slice no more scheduled or running is completed, failed or cancelled
+                    State state = workManager.getWorkState(sliceIds.get(i));
+                    if (state != State.SCHEDULED && state != State.RUNNING) {
+                        if (!UpdateAllDatesSliceWorker.removeOutcome(sliceIds.get(i))) {
+                            log.error("<Updating all dates>: slice " + sliceIds.get(i) + " failed");
+                            failed += 1;
+                        }
+                        sliceIds.remove(i);
+                    }
+                }
+
+                int done = total - sliceIds.size();
+                setProgress(new Progress(done, total));
+                setStatus("Updating all dates: " + done + "/" + total + " slices done, " + failed + " failed");
+
+                if (!sliceIds.isEmpty()) {
+                    Thread.sleep(SLICES_CHECK_DELAY_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while waiting for the slices", e);
+        } finally {
+            TransactionHelper.startTransaction();
+        }
+
+        return failed;
+    }
+
+    protected void fireDoneEvent() {
+
+        EventContextImpl ctx = new EventContextImpl(session, session.getPrincipal());
+        EventService eventService = Framework.getService(EventService.class);
+        eventService.fireEvent(UPDATE_ALL_DATES_DONE_EVENT, ctx);
+    }
+
     public void setListenersToDisable(ArrayList<String> inListeners) {
         disabledListeners = inListeners;
     }
 
+    public void setThreads(int inThreads) {
+        threads = inThreads;
+    }
+
+    public void setUseSQL(boolean inValue) {
+        useSQL = inValue;
+    }
+
+    public void setUseProjection(boolean inValue) {
+        useProjection = inValue;
+    }
+
+    public void setResumable(boolean inValue) {
+        resumable = inValue;
+    }
+
+    public void setMaxDocsPerSecond(double inValue) {
+        maxDocsPerSecond = inValue;
+    }
+
+    public void setMaxRetries(int inValue) {
+        maxRetries = inValue;
+    }
+
+    public void setScopedListeners(boolean inValue) {
+        scopedListeners = inValue;
+    }
+
+    public void setReplaySuppressedEvents(boolean inValue) {
+        replaySuppressedEvents = inValue;
+    }
+
+    /**
+     * When > 0, the worker schedules one <code>UpdateAllDatesSliceWorker</code> per type (1), or per
+     * <code>ecm:uuid</code> range of each type (> 1), instead of doing the update itself. <code>0</code> (default)
+     * means the update is done by this worker.
+     *
+     * @param inSlicesPerType
+     * @since 8.10
+     */
+    public void setSlicesPerType(int inSlicesPerType) {
+        slicesPerType = inSlicesPerType < 0 ? 0 : inSlicesPerType;
+    }
+
 }
@@ -21,6 +21,7 @@ import java.util.ArrayList;
 
 import org.apache.commons.lang.StringUtils;
 import org.nuxeo.datademo.UpdateAllDates;
+import org.nuxeo.datademo.UpdateAllDatesWorker;
 import org.nuxeo.ecm.automation.core.Constants;
 import org.nuxeo.ecm.automation.core.annotations.Context;
 import org.nuxeo.ecm.automation.core.annotations.Operation;
@@ -49,6 +50,44 @@ public class UpdateAllDatesOp {
     @Param(name = "inWorker", required = false, values = { "true" })
     protected boolean inWorker = true;
 
+    // Number of threads used to update each type. 1 (default) means no parallel update
+    @Param(name = "threads", required = false, values = { "1" })
+    protected long threads = 1;
+
+    // When running in a worker and > 0, the update is dispatched in slices (1 = one slice per type, n = n uuid ranges
+    // per type), see UpdateAllDatesWorker
+    @Param(name = "slicesPerType", required = false, values = { "0" })
+    protected long slicesPerType = 0;
+
+    // VCS only: shift the dates with SQL statements (no listener is called)
+    @Param(name = "useSQL", required = false, values = { "false" })
+    protected boolean useSQL = false;
+
+    // Fetch only the date fields (projection query) for the types having only simple date fields
+    @Param(name = "useProjection", required = false, values = { "false" })
+    protected boolean useProjection = false;
+
+    // Save a checkpoint while updating, so an interrupted update can be resumed without shifting documents twice
+    @Param(name = "resumable", required = false, values = { "false" })
+    protected boolean resumable = false;
+
+    // Maximum number of documents saved per second (all threads together). 0 means no limit
+    @Param(name = "maxDocsPerSecond", required = false, values = { "0" })
+    protected long maxDocsPerSecond = 0;
+
+    // Retries of a failing transaction before skipping the documents which cannot be saved. 0 means no retry (the
+    // update stops on the first error)
+    @Param(name = "maxRetries", required = false, values = { "0" })
+    protected long maxRetries = 0;
+
+    // Disable the listeners only for the updated documents (when the listener supports it), not for the whole server
+    @Param(name = "scopedListeners", required = false, values = { "false" })
+    protected boolean scopedListeners = false;
+
+    // Record the events not handled by the disabled listeners (except DublinCore) and replay them after the update
+    @Param(name = "replaySuppressedEvents", required = false, values = { "false" })
+    protected boolean replaySuppressedEvents = false;
+
     @OperationMethod
     public void run() {
         
@@ -64,10 +103,29 @@ public class UpdateAllDatesOp {
         
         if(inWorker) {
             
-            UpdateAllDates.runInWorker((int) numberOfDays, listenersNames);
+            UpdateAllDatesWorker worker = new UpdateAllDatesWorker((int) numberOfDays);
+            worker.setListenersToDisable(listenersNames);
+            worker.setThreads((int) threads);
+            worker.setSlicesPerType((int) slicesPerType);
+            worker.setUseSQL(useSQL);
+            worker.setUseProjection(useProjection);
+            worker.setResumable(resumable);
+            worker.setMaxDocsPerSecond(maxDocsPerSecond);
+            worker.setMaxRetries((int) maxRetries);
+            worker.setScopedListeners(scopedListeners);
+            worker.setReplaySuppressedEvents(replaySuppressedEvents);
+            UpdateAllDates.runInWorker(worker);
             
         } else {
             UpdateAllDates uad = new UpdateAllDates(session, (int) numberOfDays);
+            uad.setThreads((int) threads);
+            uad.setUseSQL(useSQL);
+            uad.setUseProjection(useProjection);
+            uad.setResumable(resumable);
+            uad.setMaxDocsPerSecond(maxDocsPerSecond);
+            uad.setMaxRetries((int) maxRetries);
+            uad.setScopedListeners(scopedListeners);
+            uad.setReplaySuppressedEvents(replaySuppressedEvents);
             if(listenersNames != null) {
                 for(String oneName : listenersNames) {
                     uad.addListenerToDisable(oneName);
@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Chooses the size of the next page of documents from the measured duration of the previous ones (time to fetch the
+ * page + time to handle it), AIMD-style:
+ * <ul>
+ * <li>While a page takes less than the target duration, the size grows by a fixed step (additive increase)</li>
+ * <li>When a page takes more than the target duration, the size is divided by 2 (multiplicative decrease)</li>
+ * </ul>
+ * A page can hold less documents than the current size (last page, page capped by a memory bound): its duration is
+ * then scaled to the current size before being compared to the target. The size always stays between a minimum and
+ * a maximum. The sizes of the pages actually handled, and the fetch/handle durations, are published in the Nuxeo
+ * metrics registry (see <code>METRICS_PREFIX</code>).
+ *
+ * @since 8.10
+ */
+public class AdaptivePageSizer {
+
+    public static final long DEFAULT_TARGET_PAGE_DURATION_MS = 2000;
+
+    public static final int DEFAULT_MIN_PAGE_SIZE = 10;
+
+    public static final int DEFAULT_MAX_PAGE_SIZE = 5000;
+
+    public static final int DEFAULT_INCREASE_STEP = 50;
+
+    public static final String METRICS_PREFIX = "nuxeo.datademo.walker";
+
+    protected long targetPageDurationMs;
+
+    protected int minPageSize;
+
+    protected int maxPageSize;
+
+    protected int increaseStep = DEFAULT_INCREASE_STEP;
+
+    protected int pageSize;
+
+    protected Histogram pageSizeHistogram;
+
+    protected Timer fetchTimer;
+
+    protected Timer callbackTimer;
+
+    public AdaptivePageSizer(int inInitialPageSize) {
+
+        this(inInitialPageSize, DEFAULT_TARGET_PAGE_DURATION_MS, DEFAULT_MIN_PAGE_SIZE, DEFAULT_MAX_PAGE_SIZE);
+    }
+
+    public AdaptivePageSizer(int inInitialPageSize, long inTargetPageDurationMs, int inMinPageSize,
+            int inMaxPageSize) {
+
+        if (inTargetPageDurationMs <= 0 || inMinPageSize < 1 || inMaxPageSize < inMinPageSize) {
+            throw new IllegalArgumentException("Invalid target duration or min/max page size");
+        }
+
+        targetPageDurationMs = inTargetPageDurationMs;
+        minPageSize = inMinPageSize;
+        maxPageSize = inMaxPageSize;
+        pageSize = clamp(inInitialPageSize);
+
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(MetricsService.class.getName());
+        pageSizeHistogram = registry.histogram(MetricRegistry.name(METRICS_PREFIX, "pageSize"));
+        fetchTimer = registry.timer(MetricRegistry.name(METRICS_PREFIX, "fetch"));
+        callbackTimer = registry.timer(MetricRegistry.name(METRICS_PREFIX, "callback"));
+    }
+
+    /**
+     * Records the durations of a page and computes the size of the next one.
+     * <p>
+     * When the page holds less documents than the current size, the duration it would have taken with the current
+     * size is estimated from its duration per document. An empty page is only published in the metrics.
+     *
+     * @param inFetchMs time spent fetching the page
+     * @param inCallbackMs time spent handling the page
+     * @param inDocCount number of documents in the page
+     * @return the size of the next page
+     * @since 8.10
+     */
+    public synchronized int recordPage(long inFetchMs, long inCallbackMs, int inDocCount) {
+
+        fetchTimer.update(inFetchMs, TimeUnit.MILLISECONDS);
+        callbackTimer.update(inCallbackMs, TimeUnit.MILLISECONDS);
+
+        if (inDocCount > 0) {
+            long duration = inFetchMs + inCallbackMs;
+            if (inDocCount < pageSize) {
+                duration = duration * pageSize / inDocCount;
+            }
+            if (duration > targetPageDurationMs) {
+                pageSize = clamp(pageSize / 2);
+            } else {
+                pageSize = clamp(pageSize + increaseStep);
+            }
+        }
+        pageSizeHistogram.update(inDocCount);
+
+        return pageSize;
+    }
+
+    protected int clamp(int inSize) {
+
+        return Math.max(minPageSize, Math.min(maxPageSize, inSize));
+    }
+
+    public synchronized int getPageSize() {
+        return pageSize;
+    }
+
+    public long getTargetPageDurationMs() {
+        return targetPageDurationMs;
+    }
+
+    public int getMinPageSize() {
+        return minPageSize;
+    }
+
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    public int getIncreaseStep() {
+        return increaseStep;
+    }
+
+    public void setIncreaseStep(int inValue) {
+        increaseStep = inValue > 0 ? inValue : DEFAULT_INCREASE_STEP;
+    }
+
+}
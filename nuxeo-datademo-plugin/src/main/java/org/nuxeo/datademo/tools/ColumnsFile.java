@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Compact binary format for the data files used by the random values classes: a list of columns, each column being
+ * either a <code>PackedStringTable</code>, a <code>double[]</code> or an <code>int[]</code> (typically, indices in a
+ * <code>PackedStringTable</code> used as a pool of distinct strings).
+ * <p>
+ * Layout (big endian): magic number, number of columns, then for each column: its type (1 byte), its number of values
+ * and the values (for strings: the number of chars, the offsets and the chars). Reading a column is a bulk copy from
+ * a <code>ByteBuffer</code>, there is no parsing.
+ * <p>
+ * The files are built from the text files by <code>ResourcesCompiler</code>.
+ *
+ * @since 8.10
+ */
+public class ColumnsFile {
+
+    // "DDC1"
+    public static final int MAGIC = 0x44444331;
+
+    protected static final byte TYPE_STRINGS = 1;
+
+    protected static final byte TYPE_DOUBLES = 2;
+
+    protected static final byte TYPE_INTS = 3;
+
+    protected ArrayList<Object> columns = new ArrayList<Object>();
+
+    public ColumnsFile add(PackedStringTable inColumn) {
+        columns.add(inColumn);
+        return this;
+    }
+
+    public ColumnsFile add(double[] inColumn) {
+        columns.add(inColumn);
+        return this;
+    }
+
+    public ColumnsFile add(int[] inColumn) {
+        columns.add(inColumn);
+        return this;
+    }
+
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    public PackedStringTable getStrings(int inColumn) {
+        return (PackedStringTable) getColumn(inColumn, PackedStringTable.class);
+    }
+
+    public double[] getDoubles(int inColumn) {
+        return (double[]) getColumn(inColumn, double[].class);
+    }
+
+    public int[] getInts(int inColumn) {
+        return (int[]) getColumn(inColumn, int[].class);
+    }
+
+    protected Object getColumn(int inColumn, Class<?> inClass) {
+
+        Object column = columns.get(inColumn);
+        if (!inClass.isInstance(column)) {
+            throw new IllegalArgumentException("Column " + inColumn + " is not a " + inClass.getSimpleName());
+        }
+
+        return column;
+    }
+
+    public void write(OutputStream inStream) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(inStream);
+        out.writeInt(MAGIC);
+        out.writeInt(columns.size());
+        for (Object column : columns) {
+            if (column instanceof PackedStringTable) {
+                PackedStringTable table = (PackedStringTable) column;
+                out.writeByte(TYPE_STRINGS);
+                out.writeInt(table.size());
+                out.writeInt(table.chars.length);
+                for (int offset : table.offsets) {
+                    out.writeInt(offset);
+                }
+                for (char c : table.chars) {
+                    out.writeChar(c);
+                }
+            } else if (column instanceof double[]) {
+                double[] values = (double[]) column;
+                out.writeByte(TYPE_DOUBLES);
+                out.writeInt(values.length);
+                for (double value : values) {
+                    out.writeDouble(value);
+                }
+            } else {
+                int[] values = (int[]) column;
+                out.writeByte(TYPE_INTS);
+                out.writeInt(values.length);
+                for (int value : values) {
+                    out.writeInt(value);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    public static ColumnsFile read(ByteBuffer inBuffer) throws IOException {
+
+        if (inBuffer.getInt() != MAGIC) {
+            throw new IOException("Not a columns file");
+        }
+
+        ColumnsFile file = new ColumnsFile();
+        int count = inBuffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte type = inBuffer.get();
+            int size = inBuffer.getInt();
+            switch (type) {
+            case TYPE_STRINGS:
+                char[] chars = new char[inBuffer.getInt()];
+                int[] offsets = new int[size + 1];
+                inBuffer.asIntBuffer().get(offsets);
+                inBuffer.position(inBuffer.position() + offsets.length * 4);
+                inBuffer.asCharBuffer().get(chars);
+                inBuffer.position(inBuffer.position() + chars.length * 2);
+                file.add(new PackedStringTable(chars, offsets));
+                break;
+
+            case TYPE_DOUBLES:
+                double[] doubles = new double[size];
+                inBuffer.asDoubleBuffer().get(doubles);
+                inBuffer.position(inBuffer.position() + size * 8);
+                file.add(doubles);
+                break;
+
+            case TYPE_INTS:
+                int[] ints = new int[size];
+                inBuffer.asIntBuffer().get(ints);
+                inBuffer.position(inBuffer.position() + size * 4);
+                file.add(ints);
+                break;
+
+            default:
+                throw new IOException("Unknown column type: " + type);
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * Reads a columns file from the resources of <code>inClass</code>. The resource is usually inside the jar, so it
+     * cannot be memory-mapped: it is read in a single byte array, then wrapped in a <code>ByteBuffer</code>.
+     *
+     * @param inClass
+     * @param inPath
+     * @return the file, or <code>null</code> if the resource does not exist
+     * @throws IOException
+     * @since 8.10
+     */
+    public static ColumnsFile loadResource(Class<?> inClass, String inPath) throws IOException {
+
+        InputStream in = inClass.getResourceAsStream(inPath);
+        if (in == null) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return read(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            in.close();
+        }
+    }
+
+}
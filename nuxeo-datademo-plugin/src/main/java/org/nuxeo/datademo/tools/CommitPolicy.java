@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+/**
+ * Decides when <code>TransactionInLoop</code> must commit the current transaction (see
+ * <code>TransactionInLoop#setCommitPolicy()</code>)
+ *
+ * @since 8.10
+ */
+public interface CommitPolicy {
+
+    /**
+     * Returns <code>true</code> if the current transaction must be committed.
+     *
+     * @param inDocCount number of documents saved since the transaction started
+     * @param inElapsedMs time since the transaction started
+     * @param inDirtyBytes estimated size of the values modified since the transaction started (always 0 if
+     *            <code>usesDirtyBytes()</code> returns <code>false</code>)
+     * @return <code>true</code> if the transaction must be committed
+     * @since 8.10
+     */
+    boolean shouldCommit(int inDocCount, long inElapsedMs, long inDirtyBytes);
+
+    /**
+     * Estimating the size of the modified values has a (small) cost on each save, see
+     * <code>DocumentSizeEstimator#estimateDirtyBytes()</code>: it is done only if this method returns
+     * <code>true</code>
+     *
+     * @since 8.10
+     */
+    boolean usesDirtyBytes();
+}
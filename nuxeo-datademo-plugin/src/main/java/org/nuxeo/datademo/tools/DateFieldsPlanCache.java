@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.ComplexType;
+import org.nuxeo.ecm.core.schema.types.Field;
+import org.nuxeo.ecm.core.schema.types.ListType;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.schema.types.Type;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Cache of the date fields of each schema and each document type (see <code>XPathFieldInfo</code>), so walking all
+ * the fields of all the schemas is done only once.
+ * <p>
+ * The date fields are computed once per schema, and the list of a document type is the merge of the lists of its
+ * schemas. An entry is computed again when the <code>SchemaManager</code> returns another instance of the
+ * schema/document type than the one used to compute it (this is what happens when the <code>SchemaManager</code>
+ * reloads its types, after a hot reload for example). <code>clear()</code> can also be called explicitly.
+ * <p>
+ * The lists returned are shared and cannot be modified. The class is thread safe.
+ * <p>
+ * The following cases are handled (see <code>UpdateAllDates</code>): simple date field, list of dates, and both of them
+ * in a complex or a multivalued complex field (first level only).
+ *
+ * @since 8.10
+ */
+public class DateFieldsPlanCache {
+
+    protected static class Entry<T> {
+
+        T source;
+
+        List<XPathFieldInfo> fields;
+
+        Entry(T inSource, List<XPathFieldInfo> inFields) {
+            source = inSource;
+            fields = inFields;
+        }
+    }
+
+    protected static final Map<String, Entry<Schema>> schemasCache = new ConcurrentHashMap<String, Entry<Schema>>();
+
+    protected static final Map<String, Entry<DocumentType>> typesCache = new ConcurrentHashMap<String, Entry<DocumentType>>();
+
+    private DateFieldsPlanCache() {
+        // Only static methods
+    }
+
+    /**
+     * Returns the date fields of the schema
+     *
+     * @param inSchema
+     * @return an unmodifiable list, possibly empty
+     * @since 8.10
+     */
+    public static List<XPathFieldInfo> getSchemaDateFields(Schema inSchema) {
+
+        Entry<Schema> entry = schemasCache.get(inSchema.getName());
+        if (entry == null || entry.source != inSchema) {
+            entry = new Entry<Schema>(inSchema, Collections.unmodifiableList(computeSchemaDateFields(inSchema)));
+            schemasCache.put(inSchema.getName(), entry);
+        }
+
+        return entry.fields;
+    }
+
+    /**
+     * Returns the date fields of all the schemas of the document type
+     *
+     * @param inType
+     * @return an unmodifiable list, possibly empty
+     * @since 8.10
+     */
+    public static List<XPathFieldInfo> getTypeDateFields(DocumentType inType) {
+
+        Entry<DocumentType> entry = typesCache.get(inType.getName());
+        if (entry == null || entry.source != inType) {
+            ArrayList<XPathFieldInfo> fields = new ArrayList<XPathFieldInfo>();
+            for (Schema schema : inType.getSchemas()) {
+                fields.addAll(getSchemaDateFields(schema));
+            }
+            entry = new Entry<DocumentType>(inType, Collections.unmodifiableList(fields));
+            typesCache.put(inType.getName(), entry);
+        }
+
+        return entry.fields;
+    }
+
+    /**
+     * Returns the date fields of all the document types declared in the <code>SchemaManager</code>. Types with no date
+     * field are not in the result.
+     *
+     * @return a map whose key is the name of the type and the value is a copy of the list of its date fields
+     * @since 8.10
+     */
+    public static LinkedHashMap<String, ArrayList<XPathFieldInfo>> getDatesPlan() {
+
+        LinkedHashMap<String, ArrayList<XPathFieldInfo>> plan = new LinkedHashMap<String, ArrayList<XPathFieldInfo>>();
+
+        SchemaManager sm = Framework.getLocalService(SchemaManager.class);
+        for (DocumentType dt : sm.getDocumentTypes()) {
+            List<XPathFieldInfo> fields = getTypeDateFields(dt);
+            if (fields.size() > 0) {
+                plan.put(dt.getName(), new ArrayList<XPathFieldInfo>(fields));
+            }
+        }
+
+        return plan;
+    }
+
+    /**
+     * Empties the cache
+     *
+     * @since 8.10
+     */
+    public static void clear() {
+
+        schemasCache.clear();
+        typesCache.clear();
+    }
+
+    protected static ArrayList<XPathFieldInfo> computeSchemaDateFields(Schema inSchema) {
+
+        ArrayList<XPathFieldInfo> fieldsInfo = new ArrayList<XPathFieldInfo>();
+
+        for (Field field : inSchema.getFields()) {
+
+            Type t = field.getType();
+            if (t.isSimpleType() || t.isListType()) {
+                String typeName = ToolsMisc.getCoreFieldType(t);
+                // If ToolsMisc.getCoreFieldType() could find a "date"
+                // core type, we know the field is not complex or
+                // complex-multivalued => We can handle it.
+                //
+                // If it does not return "date", we will check complex
+                // types in the else clauses
+                if (typeName.equals("date")) {
+                    fieldsInfo.add(new XPathFieldInfo("" + field.getName(), t.isListType(), "date"));
+                } else if (t.isListType()) {
+
+                    // Check if complex-multivalued
+                    Type subType = ((ListType) t).getFieldType();
+                    if (subType.isComplexType()) {
+                        ComplexType ct = (ComplexType) subType;
+                        String parentXPath = field.getName().getPrefixedName();
+                        Map<String, String[]> subFieldsXPathsAndTypes = ToolsMisc.getComplexFieldSubFieldsInfoPro(ct,
+                                parentXPath);
+                        for (String oneXPath : subFieldsXPathsAndTypes.keySet()) {
+                            String[] subInfos = subFieldsXPathsAndTypes.get(oneXPath);
+                            if (subInfos[0].equals("date")) {
+                                XPathFieldInfo xpfi = new XPathFieldInfo(oneXPath, subInfos[1].equals("1"), "date");
+                                xpfi.setComplexListParentXPath(parentXPath);
+                                fieldsInfo.add(xpfi);
+                            }
+                        }
+                    }
+                }
+            } else if (t.isComplexType()) {
+                ComplexType ct = (ComplexType) t;
+                Map<String, String[]> subFieldsXPathsAndTypes = ToolsMisc.getComplexFieldSubFieldsInfoPro(ct,
+                        field.getName().getPrefixedName());
+                for (String oneXPath : subFieldsXPathsAndTypes.keySet()) {
+                    String[] subInfos = subFieldsXPathsAndTypes.get(oneXPath);
+                    if (subInfos[0].equals("date")) {
+                        fieldsInfo.add(new XPathFieldInfo(oneXPath, subInfos[1].equals("1"), "date"));
+                    }
+                }
+            }
+        }
+
+        return fieldsInfo;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.DataModel;
+
+/**
+ * Cheap estimate of the memory used by a document, computed from the values of the schemas already loaded: the
+ * length of the strings, the length of the blobs and a fixed cost for the other values. Nothing is serialized and no
+ * schema is loaded, so there is no call to the database.
+ * <p>
+ * This is an order of magnitude, not an exact size: it is meant to bound the size of a page or of a transaction.
+ *
+ * @since 8.10
+ */
+public class DocumentSizeEstimator {
+
+    // Fixed cost of a document (id, path, type, facets, ...)
+    public static final long DOCUMENT_BYTES = 1024;
+
+    // Fixed cost of a value (header of the object, entry in its map or list)
+    public static final long VALUE_BYTES = 32;
+
+    /**
+     * Estimates the memory used by <code>inDoc</code>, from all the values of its loaded schemas
+     *
+     * @param inDoc
+     * @return the estimated size in bytes
+     * @since 8.10
+     */
+    public static long estimateBytes(DocumentModel inDoc) {
+
+        long bytes = DOCUMENT_BYTES;
+        for (DataModel dm : inDoc.getDataModels().values()) {
+            bytes += estimateValueBytes(dm.getMap());
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Estimates the size of the modified values of <code>inDoc</code> (the dirty fields of its loaded schemas). Returns
+     * 0 if nothing was modified.
+     *
+     * @param inDoc
+     * @return the estimated size in bytes
+     * @since 8.10
+     */
+    public static long estimateDirtyBytes(DocumentModel inDoc) {
+
+        long bytes = 0;
+        for (DataModel dm : inDoc.getDataModels().values()) {
+            if (dm.isDirty()) {
+                for (String field : dm.getDirtyFields()) {
+                    bytes += estimateValueBytes(dm.getData(field));
+                }
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Estimates the size of a property value: a scalar, a blob, or a list, array or map of values
+     *
+     * @param inValue
+     * @return the estimated size in bytes
+     * @since 8.10
+     */
+    public static long estimateValueBytes(Object inValue) {
+
+        if (inValue == null) {
+            return 0;
+        }
+
+        long bytes = VALUE_BYTES;
+        if (inValue instanceof String) {
+            bytes += 2L * ((String) inValue).length();
+        } else if (inValue instanceof Blob) {
+            bytes += Math.max(0, ((Blob) inValue).getLength());
+        } else if (inValue instanceof Map) {
+            for (Object value : ((Map<?, ?>) inValue).values()) {
+                bytes += estimateValueBytes(value);
+            }
+        } else if (inValue instanceof Collection) {
+            for (Object value : (Collection<?>) inValue) {
+                bytes += estimateValueBytes(value);
+            }
+        } else if (inValue instanceof Object[]) {
+            for (Object value : (Object[]) inValue) {
+                bytes += estimateValueBytes(value);
+            }
+        }
+
+        return bytes;
+    }
+}
@@ -17,14 +17,35 @@
 package org.nuxeo.datademo.tools;
 
 import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.datademo.tools.DocumentsCallback.ReturnStatus;
+import org.nuxeo.ecm.core.api.CoreInstance;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.query.sql.NXQL;
 import org.nuxeo.ecm.platform.query.core.CoreQueryPageProviderDescriptor;
 import org.nuxeo.ecm.platform.query.nxql.CoreQueryDocumentPageProvider;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
  * Encapsulation of a {@link CoreQueryDocumentPageProvider} which allows to use
@@ -41,15 +62,91 @@ import org.nuxeo.ecm.platform.query.nxql.CoreQueryDocumentPageProvider;
  * <code>runForEachDocument()</code> API</li>
  * </ul>
  * <i>See the unit tests for an example of use)</i>
+ * <p>
+ * KEYSET MODE: By default, pages are fetched with OFFSET/LIMIT (the page provider). Each page is slower than the
+ * previous one on large result sets, and if the callback modifies the documents, the result can shift from one page
+ * to another. After <code>setUseKeyset(true)</code>, the query is ordered by <code>ecm:uuid</code> (any ORDER BY of
+ * the query is ignored) and each page is fetched with <code>ecm:uuid > 'last id of previous page'</code>: the cost of
+ * a page does not depend on its position, and the walk is stable even when the documents are modified.
+ * <p>
+ * PREFETCH: After <code>setPrefetchPages(n)</code> (n > 0), the pages are fetched by a background thread, each one
+ * with its own <code>CoreSession</code> and transaction, while the callback handles the current page. At most
+ * <code>n</code> pages wait in memory. The documents are detached (all their schemas are loaded), so they can be saved
+ * with the session of the caller. Prefer the keyset mode when the callback modifies the documents.
+ * <p>
+ * PARALLEL: <code>runForEachPageParallel()</code> reads the pages in the current thread and dispatches them to
+ * several threads, each one with its own <code>CoreSession</code> (see <code>getCurrentSession()</code>) and
+ * transaction. The callback must then be thread safe.
+ * <p>
+ * STREAM: <code>stream()</code> returns the documents as a lazy <code>Stream</code>, no callback needed. Pages are
+ * fetched only when the stream consumes them. This stream is sequential: <code>parallelStream()</code> returns a
+ * parallel one, whose pages are fetched by a background thread.
+ * <p>
+ * MEMORY BOUNDED: After <code>setMaxPageBytes(n)</code>, <code>runForEachDocument()</code> releases each document as
+ * soon as the callback returns, and the size of each page is adapted so the estimated size of its documents stays
+ * under <code>n</code> bytes. Pages are then fetched directly with the session, without counting the total.
+ * <p>
+ * NO TOTAL COUNT: By default, the page provider counts all the documents of the query for each page. After
+ * <code>setComputeTotalCount(false)</code>, pages are fetched with the session and no count is done. The same applies
+ * to the keyset, memory bounded and adaptive modes.
+ * <p>
+ * ADAPTIVE PAGE SIZE: After <code>setAdaptivePageSize(targetMs)</code>, <code>runForEachPage()</code> and
+ * <code>runForEachDocument()</code> measure the time spent fetching and handling each page, and an
+ * <code>AdaptivePageSizer</code> grows or shrinks the size of the next page toward this target duration.
  *
  * @since 7.2
  */
 public class DocumentsWalker {
 
+    private static final Log log = LogFactory.getLog(DocumentsWalker.class);
+
     public static final int DEFAULT_DOCS_PER_PAGE = 500;
 
+    // Number of documents of a page used to estimate its size, in memory bounded mode
+    public static final int ESTIMATE_SAMPLES = 5;
+
+    protected static final Pattern WHERE_PATTERN = Pattern.compile("\\s+WHERE\\s+", Pattern.CASE_INSENSITIVE);
+
+    protected static final Pattern ORDER_BY_PATTERN = Pattern.compile("\\s+ORDER\\s+BY\\s+.*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     CoreQueryDocumentPageProvider coreQueryPP;
 
+    CoreSession session;
+
+    String query;
+
+    int pageSize;
+
+    boolean useKeyset = false;
+
+    int prefetchPages = 0;
+
+    PagePrefetcher prefetcher = null;
+
+    long maxPageBytes = 0;
+
+    // State of the pages fetched directly with the session (keyset and memory bounded modes)
+    String lastFetchedId = null;
+
+    long queryOffset = 0;
+
+    int currentPageSize;
+
+    boolean hasMorePages = false;
+
+    boolean computeTotalCount = true;
+
+    long bytesPerDoc = -1;
+
+    AdaptivePageSizer pageSizer = null;
+
+    // Session of the current consumer thread, in runForEachPageParallel()
+    protected static final ThreadLocal<CoreSession> CURRENT_SESSION = new ThreadLocal<CoreSession>();
+
+    // Put in the queue to tell the consumers there is no more page
+    protected static final List<DocumentModel> END_OF_PAGES = new ArrayList<DocumentModel>();
+
     /**
      * Initialize the underlying <code>CoreQueryDocumentPageProvider</code>
      * 
@@ -59,6 +156,9 @@ public class DocumentsWalker {
      */
     public DocumentsWalker(CoreSession inSession, String inQuery, int inPageSize) {
 
+        session = inSession;
+        query = inQuery;
+
         coreQueryPP = new CoreQueryDocumentPageProvider();
         CoreQueryPageProviderDescriptor ppDesc = new CoreQueryPageProviderDescriptor();
         ppDesc.setPattern(inQuery);
@@ -70,6 +170,8 @@ public class DocumentsWalker {
         coreQueryPP.setProperties(props);
 
         inPageSize = inPageSize > 0 ? inPageSize : DEFAULT_DOCS_PER_PAGE;
+        pageSize = inPageSize;
+        currentPageSize = inPageSize;
         coreQueryPP.setMaxPageSize(inPageSize);
         coreQueryPP.setPageSize(inPageSize);
     }
@@ -103,21 +205,26 @@ public class DocumentsWalker {
         resetQuery();
 
         inCallback.init();
-        List<DocumentModel> docs = coreQueryPP.getCurrentPage();
-        while (status == ReturnStatus.CONTINUE && docs != null && docs.size() > 0) {
+        try {
+            long start = System.currentTimeMillis();
+            List<DocumentModel> docs = fetchFirstPage();
+            long fetchMs = System.currentTimeMillis() - start;
+            while (status == ReturnStatus.CONTINUE && docs != null && docs.size() > 0) {
 
-            status = inCallback.callback(docs);
+                start = System.currentTimeMillis();
+                status = inCallback.callback(docs);
+                recordPage(fetchMs, System.currentTimeMillis() - start, docs.size());
 
-            if (status == ReturnStatus.STOP) {
-                break;
-            }
+                if (status == ReturnStatus.STOP) {
+                    break;
+                }
 
-            if (coreQueryPP.isNextPageAvailable()) {
-                coreQueryPP.nextPage();
-                docs = coreQueryPP.getCurrentPage();
-            } else {
-                docs = null;
+                start = System.currentTimeMillis();
+                docs = fetchNextPage(docs);
+                fetchMs = System.currentTimeMillis() - start;
             }
+        } finally {
+            stopPrefetch();
         }
         inCallback.end(status);
     }
@@ -139,28 +246,858 @@ public class DocumentsWalker {
         resetQuery();
 
         inCallback.init();
-        List<DocumentModel> docs = coreQueryPP.getCurrentPage();
-        while (status == ReturnStatus.CONTINUE && docs != null && docs.size() > 0) {
+        try {
+            long start = System.currentTimeMillis();
+            List<DocumentModel> docs = fetchFirstPage();
+            long fetchMs = System.currentTimeMillis() - start;
+            while (status == ReturnStatus.CONTINUE && docs != null && docs.size() > 0) {
+
+                start = System.currentTimeMillis();
+                int size = docs.size();
+                for (int i = 0; i < size; i++) {
+                    status = inCallback.callback(docs.get(i));
+                    if (maxPageBytes > 0) {
+                        // Release the document as soon as it is processed
+                        docs.set(i, null);
+                    }
+                    if (status == ReturnStatus.STOP) {
+                        break;
+                    }
+                }
+                recordPage(fetchMs, System.currentTimeMillis() - start, size);
 
-            for (DocumentModel doc : docs) {
-                status = inCallback.callback(doc);
                 if (status == ReturnStatus.STOP) {
                     break;
                 }
+
+                start = System.currentTimeMillis();
+                docs = fetchNextPage(docs);
+                fetchMs = System.currentTimeMillis() - start;
+            }
+        } finally {
+            stopPrefetch();
+        }
+        inCallback.end(status);
+    }
+
+    /**
+     * Run the query in the current thread, and call <code>inCallback</code> with a <code>List<DocumentModel></code>
+     * for each page of the query result, in <code>inThreads</code> threads. Each thread opens its own
+     * <code>CoreSession</code>, available to the callback with <code>DocumentsWalker.getCurrentSession()</code>, and
+     * commits its transaction after each page. The documents are detached, so they must be saved with this session.
+     * <p>
+     * At most <code>inThreads</code> pages wait in memory. When the callback returns <code>STOP</code> in any thread,
+     * no more page is read nor handled. <code>init()</code> and <code>end()</code> are called once, in the current
+     * thread. If the callback throws an exception, the walk stops and the error is thrown by this method.
+     * <p>
+     * The callback must be thread safe.
+     *
+     * @param inCallback
+     * @param inThreads
+     * @since 8.10
+     */
+    public void runForEachPageParallel(DocumentsCallback inCallback, int inThreads) {
+
+        if (inThreads <= 1) {
+            runForEachPage(inCallback);
+            return;
+        }
+
+        resetQuery();
+
+        ParallelWalk walk = new ParallelWalk(inCallback, inThreads);
+
+        inCallback.init();
+        ExecutorService executor = Executors.newFixedThreadPool(inThreads);
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < inThreads; i++) {
+                futures.add(executor.submit(walk.newConsumer(session.getRepositoryName(), session.getPrincipal())));
+            }
+
+            try {
+                List<DocumentModel> docs = fetchFirstPage();
+                while (!walk.stop && docs != null && docs.size() > 0) {
+                    List<DocumentModel> detached = new ArrayList<DocumentModel>(docs.size());
+                    for (DocumentModel doc : docs) {
+                        doc.detach(true);
+                        detached.add(doc);
+                    }
+                    walk.pages.put(detached);
+
+                    docs = fetchNextPage(docs);
+                }
+            } finally {
+                stopPrefetch();
+                for (int i = 0; i < inThreads; i++) {
+                    walk.pages.put(END_OF_PAGES);
+                }
             }
 
-            if (status == ReturnStatus.STOP) {
-                break;
+            for (Future<?> future : futures) {
+                future.get();
             }
 
-            if (coreQueryPP.isNextPageAvailable()) {
-                coreQueryPP.nextPage();
-                docs = coreQueryPP.getCurrentPage();
-            } else {
-                docs = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NuxeoException("Interrupted while walking the documents", e);
+        } catch (ExecutionException e) {
+            throw new NuxeoException("Error while walking the documents", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (walk.error != null) {
+            throw new NuxeoException("Error while walking the documents", walk.error);
+        }
+
+        inCallback.end(walk.stop ? ReturnStatus.STOP : ReturnStatus.CONTINUE);
+    }
+
+    /**
+     * Returns the documents of the query as a lazy <code>Stream</code>: a page is fetched only once the documents of
+     * the previous page were consumed, so the whole result is never held in memory. The stream should be closed
+     * (try-with-resources) when prefetch is used, so the prefetch thread is stopped even if the stream is not fully
+     * consumed.
+     * <p>
+     * The pages are fetched with the session of the walker, which can only be used by the current thread: the stream
+     * is sequential, and calling <code>parallel()</code> on it does not split it. Use <code>parallelStream()</code>
+     * instead.
+     *
+     * @return the stream
+     * @since 8.10
+     */
+    public Stream<DocumentModel> stream() {
+
+        resetQuery();
+
+        return StreamSupport.stream(new DocumentsSpliterator(), false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                stopPrefetch();
             }
+        });
+    }
+
+    /**
+     * Spliterator fetching the pages on demand. The size is estimated from the total count of the query when it is
+     * known (OFFSET/LIMIT mode), else it is unknown.
+     *
+     * @since 8.10
+     */
+    protected class DocumentsSpliterator implements Spliterator<DocumentModel> {
+
+        List<DocumentModel> page = null;
+
+        int indexInPage = 0;
+
+        long consumed = 0;
+
+        boolean done = false;
+
+        /*
+         * Returns true if there is a document to consume in the current page, fetching the next page if needed
+         */
+        protected boolean ensurePage() {
+
+            if (done) {
+                return false;
+            }
+
+            if (page != null && indexInPage < page.size()) {
+                return true;
+            }
+
+            List<DocumentModel> next = page == null ? fetchFirstPage() : fetchNextPage(page);
+            if (next == null || next.size() == 0) {
+                done = true;
+                stopPrefetch();
+                return false;
+            }
+
+            page = next;
+            indexInPage = 0;
+            return true;
         }
-        inCallback.end(status);
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DocumentModel> inAction) {
+
+            if (!ensurePage()) {
+                return false;
+            }
+
+            consumed += 1;
+            inAction.accept(page.get(indexInPage++));
+            return true;
+        }
+
+        /**
+         * Never splits: the pages must be fetched in the thread owning the session
+         */
+        @Override
+        public Spliterator<DocumentModel> trySplit() {
+
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+
+            if (done) {
+                return 0;
+            }
+
+            if (usePageProvider() && prefetchPages == 0 && page != null) {
+                long total = coreQueryPP.getResultsCount();
+                if (total >= 0) {
+                    return Math.max(total - consumed, 0);
+                }
+            }
+
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Returns the documents of the query as a parallel <code>Stream</code>. The pages are fetched by a background
+     * thread, each one in its own session and transaction (as in the prefetch mode, at most
+     * <code>getPrefetchPages()</code> pages, or 1, wait in its queue), and each page is handed to the stream as a batch
+     * of detached documents, which any thread can read. The documents must then be saved with another session.
+     * <p>
+     * The stream splits a new batch as soon as a page is available, so on a large result most of the documents can be
+     * held by the pending tasks: prefer <code>runForEachPageParallel()</code> there. The stream should be closed
+     * (try-with-resources), so the background thread is stopped even if the stream is not fully consumed.
+     *
+     * @return the parallel stream
+     * @since 8.10
+     */
+    public Stream<DocumentModel> parallelStream() {
+
+        resetQuery();
+
+        return StreamSupport.stream(new PrefetchedDocumentsSpliterator(), true).onClose(new Runnable() {
+            @Override
+            public void run() {
+                stopPrefetch();
+            }
+        });
+    }
+
+    /**
+     * Spliterator of <code>parallelStream()</code>, taking the pages from a <code>PagePrefetcher</code>. Each split
+     * returns the documents of a page not consumed yet. The fork/join framework uses a spliterator in one thread at a
+     * time, so only this one takes the pages from the queue.
+     *
+     * @since 8.10
+     */
+    protected class PrefetchedDocumentsSpliterator implements Spliterator<DocumentModel> {
+
+        PagePrefetcher pagesReader = null;
+
+        List<DocumentModel> page = null;
+
+        int indexInPage = 0;
+
+        boolean done = false;
+
+        protected boolean ensurePage() {
+
+            if (done) {
+                return false;
+            }
+
+            if (page != null && indexInPage < page.size()) {
+                return true;
+            }
+
+            if (pagesReader == null) {
+                pagesReader = startPrefetch(Math.max(prefetchPages, 1));
+            }
+            List<DocumentModel> next = pagesReader.nextPage();
+            if (next.size() == 0) {
+                done = true;
+                return false;
+            }
+
+            page = next;
+            indexInPage = 0;
+            return true;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super DocumentModel> inAction) {
+
+            if (!ensurePage()) {
+                return false;
+            }
+
+            inAction.accept(page.get(indexInPage++));
+            return true;
+        }
+
+        @Override
+        public Spliterator<DocumentModel> trySplit() {
+
+            if (!ensurePage()) {
+                return null;
+            }
+
+            List<DocumentModel> batch = new ArrayList<DocumentModel>(page.subList(indexInPage, page.size()));
+            indexInPage = page.size();
+
+            return Spliterators.spliterator(batch, Spliterator.ORDERED | Spliterator.NONNULL);
+        }
+
+        @Override
+        public long estimateSize() {
+
+            return done ? 0 : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    /**
+     * Returns the <code>CoreSession</code> of the current thread when called from a callback run by
+     * <code>runForEachPageParallel()</code>, <code>null</code> otherwise.
+     *
+     * @return the session, or <code>null</code>
+     * @since 8.10
+     */
+    public static CoreSession getCurrentSession() {
+        return CURRENT_SESSION.get();
+    }
+
+    /**
+     * State shared by the reader and the consumers of <code>runForEachPageParallel()</code>. Consumers always drain the
+     * queue until <code>END_OF_PAGES</code>, even after a <code>STOP</code> or an error (thrown by the callback, when
+     * opening the session or when committing), so the reader never blocks.
+     *
+     * @since 8.10
+     */
+    protected class ParallelWalk {
+
+        DocumentsCallback callback;
+
+        BlockingQueue<List<DocumentModel>> pages;
+
+        volatile boolean stop = false;
+
+        volatile Throwable error = null;
+
+        protected ParallelWalk(DocumentsCallback inCallback, int inThreads) {
+            callback = inCallback;
+            pages = new ArrayBlockingQueue<List<DocumentModel>>(inThreads);
+        }
+
+        protected Runnable newConsumer(final String inRepositoryName, final Principal inPrincipal) {
+
+            return new Runnable() {
+                @Override
+                public void run() {
+                    // consume() returns once END_OF_PAGES was taken
+                    boolean ended = false;
+                    try {
+                        TransactionHelper.startTransaction();
+                        try (CoreSession consumerSession = CoreInstance.openCoreSession(inRepositoryName,
+                                inPrincipal)) {
+                            CURRENT_SESSION.set(consumerSession);
+                            consume();
+                            ended = true;
+                        } finally {
+                            CURRENT_SESSION.remove();
+                            TransactionHelper.commitOrRollbackTransaction();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Throwable e) {
+                        fail(e);
+                        if (!ended) {
+                            drain();
+                        }
+                    }
+                }
+            };
+        }
+
+        protected void consume() throws InterruptedException {
+
+            while (true) {
+                List<DocumentModel> docs = pages.take();
+                if (docs == END_OF_PAGES) {
+                    break;
+                }
+                if (stop) {
+                    continue;
+                }
+
+                try {
+                    if (callback.callback(docs) == ReturnStatus.STOP) {
+                        stop = true;
+                    }
+                } catch (Throwable e) {
+                    fail(e);
+                    TransactionHelper.setTransactionRollbackOnly();
+                }
+                try {
+                    TransactionHelper.commitOrRollbackTransaction();
+                    TransactionHelper.startTransaction();
+                } catch (Throwable e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /*
+         * Takes the remaining pages without handling them, until END_OF_PAGES
+         */
+        protected void drain() {
+
+            try {
+                while (pages.take() != END_OF_PAGES) {
+                    // Ignored
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void fail(Throwable inError) {
+
+            log.error("Error while walking the documents", inError);
+            if (error == null) {
+                error = inError;
+            }
+            stop = true;
+        }
+    }
+
+    /**
+     * Returns the first page of the query result
+     *
+     * @return the documents
+     * @since 8.10
+     */
+    protected List<DocumentModel> fetchFirstPage() {
+
+        if (prefetchPages > 0) {
+            return startPrefetch(prefetchPages).nextPage();
+        }
+
+        if (!usePageProvider()) {
+            resetWalkState();
+            return fetchWithSession(session);
+        }
+
+        return coreQueryPP.getCurrentPage();
+    }
+
+    /*
+     * State of the pages fetched with fetchWithSession()
+     */
+    protected void resetWalkState() {
+
+        lastFetchedId = null;
+        queryOffset = 0;
+        bytesPerDoc = -1;
+        hasMorePages = false;
+    }
+
+    /**
+     * Starts a new <code>PagePrefetcher</code> (stopping the current one, if any), keeping at most
+     * <code>inMaxPages</code> pages in its queue
+     *
+     * @param inMaxPages
+     * @return the prefetcher
+     * @since 8.10
+     */
+    protected PagePrefetcher startPrefetch(int inMaxPages) {
+
+        stopPrefetch();
+        resetWalkState();
+
+        prefetcher = new PagePrefetcher(session.getRepositoryName(), session.getPrincipal(), inMaxPages);
+        prefetcher.start();
+
+        return prefetcher;
+    }
+
+    /**
+     * Returns the page following <code>inPreviousPage</code>, <code>null</code> if there is none
+     *
+     * @param inPreviousPage
+     * @return the documents, or <code>null</code>
+     * @since 8.10
+     */
+    protected List<DocumentModel> fetchNextPage(List<DocumentModel> inPreviousPage) {
+
+        if (prefetcher != null) {
+            return prefetcher.nextPage();
+        }
+
+        if (!usePageProvider()) {
+            if (!hasMorePages) {
+                return null;
+            }
+            return fetchWithSession(session);
+        }
+
+        if (coreQueryPP.isNextPageAvailable()) {
+            coreQueryPP.nextPage();
+            return coreQueryPP.getCurrentPage();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> when the pages are fetched by the <code>CoreQueryDocumentPageProvider</code> (default
+     * mode), <code>false</code> when they are fetched directly with the session (no total count, keyset, memory
+     * bounded or adaptive mode)
+     *
+     * @return
+     * @since 8.10
+     */
+    protected boolean usePageProvider() {
+        return computeTotalCount && !useKeyset && maxPageBytes <= 0 && pageSizer == null;
+    }
+
+    /**
+     * Fetches the next page with the session, after <code>lastFetchedId</code> (keyset mode) or at
+     * <code>queryOffset</code>, without counting the total number of documents: one more document than the page size is
+     * fetched, only to know if there is a next page. The size of the page is given by <code>computePageSize()</code>.
+     *
+     * @param inSession the session of the walker, or the one of the prefetch thread
+     * @return the documents
+     * @since 8.10
+     */
+    protected List<DocumentModel> fetchWithSession(CoreSession inSession) {
+
+        currentPageSize = computePageSize();
+
+        List<DocumentModel> docs;
+        if (useKeyset) {
+            docs = inSession.query(buildKeysetQuery(lastFetchedId), null, currentPageSize + 1, 0, false);
+        } else {
+            docs = inSession.query(query, null, currentPageSize + 1, queryOffset, false);
+        }
+        hasMorePages = docs.size() > currentPageSize;
+        if (hasMorePages) {
+            docs = new ArrayList<DocumentModel>(docs.subList(0, currentPageSize));
+        }
+        queryOffset += docs.size();
+
+        if (docs.size() > 0) {
+            lastFetchedId = docs.get(docs.size() - 1).getId();
+            if (maxPageBytes > 0) {
+                bytesPerDoc = estimateBytes(docs);
+            }
+        }
+
+        return docs;
+    }
+
+    /**
+     * Returns the size of the next page: the one chosen by the <code>AdaptivePageSizer</code> if any, else the page
+     * size given to the constructor. In memory bounded mode, it is then reduced (down to 1) so the estimated size of
+     * the documents fits in <code>maxPageBytes</code>.
+     *
+     * @return the page size
+     * @since 8.10
+     */
+    protected int computePageSize() {
+
+        int size = pageSizer != null ? pageSizer.getPageSize() : pageSize;
+        if (maxPageBytes > 0 && bytesPerDoc > 0) {
+            size = (int) Math.max(1, Math.min(size, maxPageBytes / bytesPerDoc));
+        }
+
+        return size;
+    }
+
+    /**
+     * Gives the durations of a page to the <code>AdaptivePageSizer</code>, if any
+     *
+     * @param inFetchMs
+     * @param inCallbackMs
+     * @param inDocCount
+     * @since 8.10
+     */
+    protected void recordPage(long inFetchMs, long inCallbackMs, int inDocCount) {
+
+        if (pageSizer != null) {
+            pageSizer.recordPage(inFetchMs, inCallbackMs, inDocCount);
+        }
+    }
+
+    /**
+     * Estimates the memory used by one document of <code>inDocs</code>: the biggest estimate of at most
+     * <code>ESTIMATE_SAMPLES</code> documents spread over the list (see <code>DocumentSizeEstimator</code>). Returns
+     * -1 if the list is empty.
+     *
+     * @param inDocs
+     * @return the estimated size in bytes, or -1
+     * @since 8.10
+     */
+    public static long estimateBytes(List<DocumentModel> inDocs) {
+
+        long max = -1;
+        int size = inDocs.size();
+        int step = Math.max(1, (size + ESTIMATE_SAMPLES - 1) / ESTIMATE_SAMPLES);
+        for (int i = 0; i < size; i += step) {
+            max = Math.max(max, DocumentSizeEstimator.estimateBytes(inDocs.get(i)));
+        }
+
+        return max;
+    }
+
+    /**
+     * Builds the query used in keyset mode: the ORDER BY clause of the original query is removed, the original WHERE
+     * clause (if any) is kept between parenthesis, and the result is ordered by <code>ecm:uuid</code>, starting after
+     * <code>inLastId</code> (if not <code>null</code>)
+     *
+     * @param inLastId
+     * @return the NXQL query
+     * @since 8.10
+     */
+    protected String buildKeysetQuery(String inLastId) {
+
+        return buildKeysetQuery(query, inLastId);
+    }
+
+    /**
+     * Same as <code>buildKeysetQuery(String)</code>, for any NXQL query (a projection query for example)
+     *
+     * @param inQuery
+     * @param inLastId
+     * @return the NXQL query
+     * @since 8.10
+     */
+    public static String buildKeysetQuery(String inQuery, String inLastId) {
+
+        String nxql = ORDER_BY_PATTERN.matcher(inQuery).replaceFirst("");
+
+        String keysetCondition = inLastId == null ? null : NXQL.ECM_UUID + " > '" + inLastId + "'";
+        Matcher m = WHERE_PATTERN.matcher(nxql);
+        if (m.find()) {
+            nxql = nxql.substring(0, m.start()) + " WHERE (" + nxql.substring(m.end()) + ")";
+            if (keysetCondition != null) {
+                nxql += " AND " + keysetCondition;
+            }
+        } else if (keysetCondition != null) {
+            nxql += " WHERE " + keysetCondition;
+        }
+
+        return nxql + " ORDER BY " + NXQL.ECM_UUID;
+    }
+
+    /**
+     * Stops the prefetch thread, if any (when all the pages were handled, or the callback returned
+     * <code>STOP</code>).
+     *
+     * @since 8.10
+     */
+    protected void stopPrefetch() {
+
+        if (prefetcher != null) {
+            prefetcher.interrupt();
+            try {
+                // It uses the state of the walk, which the next walk resets
+                prefetcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Fetches the pages in its own thread and puts them in a bounded queue. An empty list is put once there is no more
+     * page.
+     * <p>
+     * Each page is fetched in its own transaction and session, so a walk lasting hours does not hit the transaction
+     * timeout. Pages are fetched with <code>fetchWithSession()</code>, so their size is the one of the
+     * <code>AdaptivePageSizer</code> and of the memory bounded mode, if any. The state of the walk
+     * (<code>lastFetchedId</code>, <code>queryOffset</code>, ...) is then only used by this thread.
+     *
+     * @since 8.10
+     */
+    protected class PagePrefetcher extends Thread {
+
+        String repositoryName;
+
+        Principal principal;
+
+        BlockingQueue<List<DocumentModel>> pages;
+
+        volatile Throwable error = null;
+
+        protected PagePrefetcher(String inRepositoryName, Principal inPrincipal, int inMaxPages) {
+
+            super("DocumentsWalker-prefetch");
+            setDaemon(true);
+            repositoryName = inRepositoryName;
+            principal = inPrincipal;
+            pages = new ArrayBlockingQueue<List<DocumentModel>>(inMaxPages);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                do {
+                    List<DocumentModel> page = fetchPage();
+                    if (page.size() > 0) {
+                        pages.put(page);
+                    }
+                } while (hasMorePages);
+
+            } catch (InterruptedException e) {
+                // Stopped by the walker
+                return;
+            } catch (Throwable e) {
+                if (isInterrupted()) {
+                    // Stopped by the walker while querying
+                    return;
+                }
+                log.error("Error while prefetching the documents", e);
+                error = e;
+            }
+
+            try {
+                pages.put(new ArrayList<DocumentModel>());
+            } catch (InterruptedException e) {
+                // Stopped by the walker, nothing to do
+            }
+        }
+
+        /*
+         * Fetches one page in a new transaction and session. The documents are detached, so they can be used once the
+         * session is closed
+         */
+        protected List<DocumentModel> fetchPage() {
+
+            TransactionHelper.startTransaction();
+            try (CoreSession prefetchSession = CoreInstance.openCoreSession(repositoryName, principal)) {
+                List<DocumentModel> page = fetchWithSession(prefetchSession);
+                for (DocumentModel doc : page) {
+                    doc.detach(true);
+                }
+                return page;
+            } finally {
+                TransactionHelper.commitOrRollbackTransaction();
+            }
+        }
+
+        /*
+         * Returns the next page, or an empty list if there is no more page
+         */
+        protected List<DocumentModel> nextPage() {
+
+            try {
+                List<DocumentModel> page = pages.take();
+                if (error != null) {
+                    throw new NuxeoException("Error while prefetching the documents", error);
+                }
+                return page;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException("Interrupted while waiting for the next page", e);
+            }
+        }
+    }
+
+    /**
+     * Adapts the page size to the measured durations, so a page (fetch + callback) takes about
+     * <code>inTargetPageDurationMs</code>. The size given to the constructor is the initial size. A value <= 0 disables
+     * the adaptive page size.
+     *
+     * @param inTargetPageDurationMs
+     * @since 8.10
+     */
+    public void setAdaptivePageSize(long inTargetPageDurationMs) {
+
+        if (inTargetPageDurationMs > 0) {
+            pageSizer = new AdaptivePageSizer(pageSize, inTargetPageDurationMs,
+                    Math.min(pageSize, AdaptivePageSizer.DEFAULT_MIN_PAGE_SIZE),
+                    Math.max(pageSize, AdaptivePageSizer.DEFAULT_MAX_PAGE_SIZE));
+        } else {
+            pageSizer = null;
+        }
+    }
+
+    public AdaptivePageSizer getAdaptivePageSizer() {
+        return pageSizer;
+    }
+
+    public boolean getComputeTotalCount() {
+        return computeTotalCount;
+    }
+
+    /**
+     * When <code>false</code>, the pages are fetched with the session, without the total count the page provider
+     * computes for each page (<code>COUNT(*)</code> on the whole result). Whether there is a next page is known by
+     * fetching one more document than the page size.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setComputeTotalCount(boolean inValue) {
+        computeTotalCount = inValue;
+    }
+
+    public long getMaxPageBytes() {
+        return maxPageBytes;
+    }
+
+    /**
+     * Maximum estimated size, in bytes, of a page of documents. <code>0</code> (default) means no limit.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setMaxPageBytes(long inValue) {
+        maxPageBytes = inValue > 0 ? inValue : 0;
+    }
+
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Number of pages fetched in advance by a background thread. <code>0</code> (default) means no prefetch: each page
+     * is fetched once the callback has handled the previous one.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setPrefetchPages(int inValue) {
+        prefetchPages = inValue > 0 ? inValue : 0;
+    }
+
+    public boolean getUseKeyset() {
+        return useKeyset;
+    }
+
+    /**
+     * Use keyset pagination (ordered by <code>ecm:uuid</code>) instead of OFFSET/LIMIT pagination.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setUseKeyset(boolean inValue) {
+        useKeyset = inValue;
     }
 
 }
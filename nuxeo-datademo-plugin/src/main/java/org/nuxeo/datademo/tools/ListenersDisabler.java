@@ -16,13 +16,21 @@
  */
 package org.nuxeo.datademo.tools;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
 import org.nuxeo.ecm.core.event.EventService;
 import org.nuxeo.ecm.core.event.impl.EventListenerDescriptor;
 import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
@@ -34,6 +42,24 @@ import org.nuxeo.runtime.api.Framework;
  * <P>
  * IMPORTANT: You must call <code>disableListeners()</code> <i>before</i> <code>restoreListeners()</code>, because the
  * state (enabled/disabled) is saved when you disable them.
+ * <p>
+ * SCOPED MODE: By default, the listeners are disabled for the whole server (every user, every thread) until they are
+ * restored. When the disabler is created with <code>new ListenersDisabler(true)</code>, the listeners which check a
+ * flag in the context of the event (for example <code>disableDublinCoreListener</code> for the DublinCore listener,
+ * see <code>CONTEXT_FLAGS</code>) are not disabled: instead, <code>prepareDocument()</code> must be called on each
+ * document before saving it, so the flag is set in its context data and only the events raised when saving this
+ * document are ignored. Live traffic and other bulk jobs are not affected, and the list of enabled listeners is not
+ * recomputed. The listeners with no known flag are still disabled for the whole server (a warning is logged).
+ * <p>
+ * Disabling for the whole server is reference counted: when several <code>ListenersDisabler</code> (several bulk jobs
+ * running at the same time, for example) disable the same listener, it is disabled by the first one and restored by
+ * the last one, to the state it had before the first one. The list of enabled listeners is recomputed only when the
+ * state of a listener actually changes, and the listener descriptors are looked up once.
+ * <p>
+ * CAPTURE: The side effects of a disabled listener are lost. For the listeners passed to
+ * <code>setCapturedListeners()</code>, <code>captureDocument()</code> records the document modification events they
+ * would have handled in a <code>SuppressedEventsJournal</code>, so they can be replayed later, once the listeners are
+ * restored (see <code>SuppressedEventsReplayWorker</code>).
  * 
  * @since 7.3
  */
@@ -50,25 +76,120 @@ public class ListenersDisabler {
     // See OperationEventListener.java (in Nuxeo sources, nuxeo-automation-core)
     public static final String OP_CHAIN_POSTCOMMIT_LISTENER_NAME = "opchainpclistener";
 
+    // See nxaudit-events-contrib.xml (in Nuxeo sources, nuxeo-platform-audit-core)
+    public static final String AUDIT_LISTENER_NAME = "auditLoggerListener";
+
+    // See notification-listener-contrib.xml (in Nuxeo sources, nuxeo-platform-notification-core)
+    public static final String NOTIFICATION_LISTENER_NAME = "notificationListener";
+
+    // See DublinCoreListener.DISABLE_DUBLINCORE_LISTENER
+    public static final String DUBLINCORE_CONTEXT_FLAG = "disableDublinCoreListener";
+
+    // See NXAuditEventsService.DISABLE_AUDIT_LOGGER
+    public static final String AUDIT_CONTEXT_FLAG = "disableAuditLogger";
+
+    // See NotificationConstants.DISABLE_NOTIFICATION_SERVICE
+    public static final String NOTIFICATION_CONTEXT_FLAG = "disableNotificationService";
+
+    /**
+     * For the listeners which can be disabled for a single event, the name of the context flag they check.
+     * <code>registerContextFlag()</code> adds other listeners.
+     *
+     * @since 8.10
+     */
+    public static final Map<String, String> CONTEXT_FLAGS;
+
+    static {
+        HashMap<String, String> flags = new HashMap<String, String>();
+        flags.put(DUBLINCORELISTENER_NAME, DUBLINCORE_CONTEXT_FLAG);
+        flags.put(AUDIT_LISTENER_NAME, AUDIT_CONTEXT_FLAG);
+        flags.put(NOTIFICATION_LISTENER_NAME, NOTIFICATION_CONTEXT_FLAG);
+        CONTEXT_FLAGS = Collections.unmodifiableMap(flags);
+    }
+
+    private static final Object REGISTRY_LOCK = new Object();
+
+    // The EventService the registry below is about (a new one means the runtime was restarted)
+    private static EventServiceImpl registryEventService = null;
+
+    // Number of ListenersDisabler having disabled each listener for the whole server
+    private static final HashMap<String, Integer> disableCounts = new HashMap<String, Integer>();
+
+    // State of each listener before the first ListenersDisabler disabled it
+    private static final HashMap<String, Boolean> statesBeforeDisable = new HashMap<String, Boolean>();
+
+    private static final HashMap<String, EventListenerDescriptor> descriptorsCache = new HashMap<String, EventListenerDescriptor>();
+
+    /**
+     * The events recorded by <code>captureDocument()</code> (if the captured listeners handle them)
+     *
+     * @since 8.10
+     */
+    public static final String[] CAPTURED_EVENTS = { DocumentEventTypes.BEFORE_DOC_UPDATE,
+            DocumentEventTypes.DOCUMENT_UPDATED };
+
     HashMap<String, EventListenerDescriptor> listeners = new HashMap<String, EventListenerDescriptor>();
 
-    HashMap<String, Boolean> originalStatus = null;
+    protected HashSet<String> capturedListeners = new HashSet<String>();
+
+    protected volatile List<String> capturedEvents = Collections.emptyList();
+
+    protected volatile SuppressedEventsJournal journal = null;
+
+    // Listeners disabled for the whole server by this object, null until disableListeners() is called
+    HashSet<String> globallyDisabled = null;
+
+    // true between disableListeners() and restoreListeners(), whatever the listeners are disabled for the whole server
+    // or only by their context flag
+    protected boolean disabled = false;
 
     EventServiceImpl eventService;
 
+    protected boolean scoped = false;
+
+    protected HashMap<String, String> contextFlags = new HashMap<String, String>(CONTEXT_FLAGS);
+
+    protected volatile List<String> activeFlags = Collections.emptyList();
+
     public ListenersDisabler() {
 
         eventService = (EventServiceImpl) Framework.getService(EventService.class);
 
     }
 
+    /**
+     * @param inScoped if <code>true</code>, the listeners are disabled only for the documents passed to
+     *            <code>prepareDocument()</code>, when possible
+     * @since 8.10
+     */
+    public ListenersDisabler(boolean inScoped) {
+
+        this();
+        scoped = inScoped;
+    }
+
+    /**
+     * Declares the context flag checked by a listener, so it can be disabled in scoped mode
+     *
+     * @param inListenerName
+     * @param inFlag
+     * @since 8.10
+     */
+    public void registerContextFlag(String inListenerName, String inFlag) {
+
+        if (StringUtils.isBlank(inListenerName) || StringUtils.isBlank(inFlag)) {
+            throw new IllegalArgumentException();
+        }
+        contextFlags.put(inListenerName, inFlag);
+    }
+
     public void addListener(String inName) {
 
         if (StringUtils.isBlank(inName)) {
             throw new IllegalArgumentException();
         }
 
-        EventListenerDescriptor desc = eventService.getEventListener(inName);
+        EventListenerDescriptor desc = getDescriptor(inName);
         if (desc == null) {
             log.warn("Listener <" + inName + "> not found. Cannot enable/disable it.");
         }
@@ -86,40 +207,236 @@ public class ListenersDisabler {
         }
     }
 
+    /*
+     * Must be called with REGISTRY_LOCK held. Forgets everything if the EventService changed
+     */
+    protected void checkRegistry() {
+
+        if (registryEventService != eventService) {
+            registryEventService = eventService;
+            disableCounts.clear();
+            statesBeforeDisable.clear();
+            descriptorsCache.clear();
+        }
+    }
+
+    protected EventListenerDescriptor getDescriptor(String inName) {
+
+        synchronized (REGISTRY_LOCK) {
+            checkRegistry();
+            EventListenerDescriptor desc = descriptorsCache.get(inName);
+            if (desc == null) {
+                desc = eventService.getEventListener(inName);
+                if (desc != null) {
+                    descriptorsCache.put(inName, desc);
+                }
+            }
+            return desc;
+        }
+    }
+
     public void disableListeners() {
 
-        originalStatus = new HashMap<String, Boolean>();
+        if (disabled) {
+            throw new RuntimeException("Listeners already disabled, restoreListeners() must be called first.");
+        }
+        disabled = true;
+
+        globallyDisabled = new HashSet<String>();
+        ArrayList<String> flags = new ArrayList<String>();
         for (Entry<String, EventListenerDescriptor> entry : listeners.entrySet()) {
-            EventListenerDescriptor desc = entry.getValue();
-            originalStatus.put(entry.getKey(), desc.isEnabled());
-            desc.setEnabled(false);
+            String flag = contextFlags.get(entry.getKey());
+            if (scoped && flag != null) {
+                flags.add(flag);
+                continue;
+            }
+            if (entry.getValue() == null) {
+                // Not found, see addListener()
+                continue;
+            }
+            if (scoped) {
+                log.warn("Listener <" + entry.getKey() + "> has no context flag, it is disabled for the whole server");
+            }
+            globallyDisabled.add(entry.getKey());
+        }
+        activeFlags = Collections.unmodifiableList(flags);
+        startCapture();
+
+        synchronized (REGISTRY_LOCK) {
+            checkRegistry();
+            boolean changed = false;
+            for (String name : globallyDisabled) {
+                Integer count = disableCounts.get(name);
+                if (count == null) {
+                    EventListenerDescriptor desc = listeners.get(name);
+                    statesBeforeDisable.put(name, desc.isEnabled());
+                    if (desc.isEnabled()) {
+                        desc.setEnabled(false);
+                        changed = true;
+                    }
+                    count = 0;
+                }
+                disableCounts.put(name, count + 1);
+            }
+            if (changed) {
+                eventService.getListenerList().recomputeEnabledListeners();
+            }
+        }
+
+    }
+
+    /**
+     * In scoped mode, sets the context flags of the disabled listeners in <code>inDoc</code>, so they ignore the
+     * events raised when saving it. Does nothing if the listeners were not disabled or were disabled for the whole
+     * server. Can be called by several threads.
+     *
+     * @param inDoc
+     * @return <code>inDoc</code>
+     * @since 8.10
+     */
+    public DocumentModel prepareDocument(DocumentModel inDoc) {
+
+        for (String flag : activeFlags) {
+            inDoc.putContextData(flag, (Serializable) Boolean.TRUE);
+        }
+
+        return inDoc;
+    }
+
+    /**
+     * Records in the journal the events the captured listeners would have handled when saving <code>inDoc</code>.
+     * Does nothing if no listener is captured or if the listeners are not disabled. Can be called by several threads.
+     *
+     * @param inDoc
+     * @return <code>inDoc</code>
+     * @since 8.10
+     */
+    public DocumentModel captureDocument(DocumentModel inDoc) {
+
+        SuppressedEventsJournal theJournal = journal;
+        if (theJournal != null) {
+            for (String eventName : capturedEvents) {
+                theJournal.append(inDoc.getId(), eventName);
+            }
+        }
+
+        return inDoc;
+    }
+
+    /*
+     * Called by disableListeners(): creates the journal if there are listeners to capture
+     */
+    protected void startCapture() {
+
+        ArrayList<String> events = new ArrayList<String>();
+        for (String eventName : CAPTURED_EVENTS) {
+            for (String name : capturedListeners) {
+                EventListenerDescriptor desc = listeners.get(name);
+                if (desc != null && desc.acceptEvent(eventName)) {
+                    events.add(eventName);
+                    break;
+                }
+            }
+        }
+
+        capturedEvents = Collections.unmodifiableList(events);
+        if (events.size() > 0) {
+            journal = new SuppressedEventsJournal();
+        }
+    }
+
+    /**
+     * Records the events of the given listeners, see <code>captureDocument()</code>. The listeners must also be added
+     * (see <code>addListener()</code>). Must be called before <code>disableListeners()</code>.
+     *
+     * @param inNames
+     * @since 8.10
+     */
+    public void setCapturedListeners(String... inNames) {
+
+        capturedListeners = new HashSet<String>();
+        for (String name : inNames) {
+            capturedListeners.add(name);
         }
+    }
+
+    public Set<String> getCapturedListeners() {
+        return capturedListeners;
+    }
 
-        eventService.getListenerList().recomputeEnabledListeners();
+    /**
+     * Returns the journal of the captured events (closed once the listeners are restored), and forgets it: the caller
+     * is in charge of replaying it (see <code>SuppressedEventsReplayWorker</code>) or deleting its file.
+     *
+     * @return the journal, or <code>null</code> if no event was captured
+     * @since 8.10
+     */
+    public SuppressedEventsJournal takeJournal() {
 
+        SuppressedEventsJournal theJournal = journal;
+        journal = null;
+        if (theJournal != null && theJournal.getCount() == 0) {
+            theJournal.close();
+            theJournal.getFile().delete();
+            return null;
+        }
+
+        return theJournal;
     }
 
     public void restoreListeners() {
 
-        if (originalStatus == null) {
+        if (globallyDisabled == null) {
             throw new RuntimeException("You must call disableListeners() before restoring them.");
         }
-        
-        for (Entry<String, Boolean> entry : originalStatus.entrySet()) {
-            String name = entry.getKey();
-            boolean status = entry.getValue();
-            listeners.get(name).setEnabled(status);
-            
-        }
 
-        eventService.getListenerList().recomputeEnabledListeners();
+        synchronized (REGISTRY_LOCK) {
+            checkRegistry();
+            boolean changed = false;
+            for (String name : globallyDisabled) {
+                Integer count = disableCounts.get(name);
+                if (count == null) {
+                    // The registry was reset (runtime restarted)
+                    continue;
+                }
+                if (count > 1) {
+                    disableCounts.put(name, count - 1);
+                    continue;
+                }
+                disableCounts.remove(name);
+                boolean status = statesBeforeDisable.remove(name);
+                EventListenerDescriptor desc = listeners.get(name);
+                if (desc.isEnabled() != status) {
+                    desc.setEnabled(status);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                eventService.getListenerList().recomputeEnabledListeners();
+            }
+        }
+        globallyDisabled.clear();
+        activeFlags = Collections.emptyList();
+        capturedEvents = Collections.emptyList();
+        if (journal != null) {
+            journal.close();
+        }
+        disabled = false;
 
     }
     
     public void reset() {
         
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        capturedListeners = new HashSet<String>();
+        capturedEvents = Collections.emptyList();
         listeners = new HashMap<String, EventListenerDescriptor>();
-        originalStatus = null;
+        globallyDisabled = null;
+        activeFlags = Collections.emptyList();
+        disabled = false;
         
     }
     
@@ -129,4 +446,33 @@ public class ListenersDisabler {
         
     }
 
+    /**
+     * Returns the number of <code>ListenersDisabler</code> currently disabling <code>inName</code> for the whole
+     * server
+     *
+     * @param inName
+     * @return the count, 0 if the listener is not disabled by a <code>ListenersDisabler</code>
+     * @since 8.10
+     */
+    public static int getDisableCount(String inName) {
+
+        synchronized (REGISTRY_LOCK) {
+            Integer count = disableCounts.get(inName);
+            return count == null ? 0 : count;
+        }
+    }
+
+    public boolean isScoped() {
+        return scoped;
+    }
+
+    /**
+     * Returns the context flags set by <code>prepareDocument()</code>
+     *
+     * @since 8.10
+     */
+    public List<String> getActiveContextFlags() {
+        return activeFlags;
+    }
+
 }
@@ -0,0 +1,154 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable list of strings packed in a single <code>char[]</code>, plus an <code>int[]</code> of offsets: string
+ * <code>i</code> is <code>chars[offsets[i]]</code> to <code>chars[offsets[i + 1] - 1]</code>. Compared to an
+ * <code>ArrayList&lt;String&gt;</code>, there is no object per string (no <code>String</code>, no inner array), so
+ * the table uses less memory and the strings are contiguous.
+ * <p>
+ * <code>get()</code> builds a new <code>String</code>. To avoid any allocation, use <code>appendTo()</code>, which
+ * writes the string in a <code>StringBuilder</code> provided (and reused) by the caller.
+ *
+ * @since 8.10
+ */
+public class PackedStringTable {
+
+    protected char[] chars;
+
+    protected int[] offsets;
+
+    /**
+     * @param inChars the strings, one after the other
+     * @param inOffsets the start of each string in <code>inChars</code>, plus one last value, the end of the last
+     *            string (so <code>inOffsets.length</code> is the number of strings + 1)
+     */
+    public PackedStringTable(char[] inChars, int[] inOffsets) {
+
+        if (inOffsets.length < 1 || inOffsets[inOffsets.length - 1] > inChars.length) {
+            throw new IllegalArgumentException("Invalid offsets");
+        }
+        chars = inChars;
+        offsets = inOffsets;
+    }
+
+    /**
+     * Loads a UTF-8 text resource, one string per line. Empty lines and the byte order mark are ignored.
+     *
+     * @param inStream
+     * @return the table
+     * @throws IOException
+     * @since 8.10
+     */
+    public static PackedStringTable load(InputStream inStream) throws IOException {
+
+        Builder builder = new Builder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inStream, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (builder.size() == 0 && line.startsWith("\uFEFF")) {
+                line = line.substring(1);
+            }
+            if (!line.isEmpty()) {
+                builder.add(line);
+            }
+        }
+
+        return builder.build();
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public int length(int inIndex) {
+        return offsets[inIndex + 1] - offsets[inIndex];
+    }
+
+    public String get(int inIndex) {
+        return new String(chars, offsets[inIndex], length(inIndex));
+    }
+
+    /**
+     * Appends string <code>inIndex</code> to <code>inSb</code>, without allocating anything (if <code>inSb</code> has
+     * enough capacity)
+     *
+     * @param inIndex
+     * @param inSb
+     * @return <code>inSb</code>
+     * @since 8.10
+     */
+    public StringBuilder appendTo(int inIndex, StringBuilder inSb) {
+        return inSb.append(chars, offsets[inIndex], length(inIndex));
+    }
+
+    /**
+     * Returns a random index, between 0 and <code>size() - 1</code>
+     *
+     * @since 8.10
+     */
+    public int randomIndex() {
+        return ToolsMisc.randomInt(0, size() - 1);
+    }
+
+    /**
+     * Builds a <code>PackedStringTable</code> by adding the strings one by one
+     *
+     * @since 8.10
+     */
+    public static class Builder {
+
+        protected StringBuilder sb = new StringBuilder();
+
+        protected int[] offsets = new int[1024];
+
+        protected int count = 0;
+
+        public Builder add(String inValue) {
+
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            sb.append(inValue);
+            count += 1;
+            offsets[count] = sb.length();
+
+            return this;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public PackedStringTable build() {
+
+            char[] chars = new char[sb.length()];
+            sb.getChars(0, sb.length(), chars, 0);
+
+            return new PackedStringTable(chars, Arrays.copyOf(offsets, count + 1));
+        }
+    }
+
+}
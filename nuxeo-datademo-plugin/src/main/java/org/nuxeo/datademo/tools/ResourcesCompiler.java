@@ -0,0 +1,249 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Builds the <code>ColumnsFile</code>s of the data files (names, companies, US zips), so they are loaded without
+ * parsing at runtime. Run at build time (see the <code>process-classes</code> phase in the pom), with the directory
+ * containing the text files as argument: each <code>xxx.txt</code> file is compiled in <code>xxx.bin</code>.
+ * <p>
+ * The <code>compileXXX()</code> methods are also used at runtime when there is no <code>.bin</code> file (or for a
+ * custom file), so the text and binary formats give the same values.
+ *
+ * @since 8.10
+ */
+public class ResourcesCompiler {
+
+    private static final Log log = LogFactory.getLog(ResourcesCompiler.class);
+
+    public static final String[] NAMES_FILES = { "FirstNames-Male", "FirstNames-Female", "LastNames" };
+
+    public static final String COMPANIES_FILE = "Companies";
+
+    public static final String US_ZIPS_FILE = "US-zips";
+
+    // Columns of the US zips file. States and cities are pooled: a table of distinct values, and one index per zip
+    public static final int ZIPS_COL_ZIP = 0;
+
+    public static final int ZIPS_COL_STATES_POOL = 1;
+
+    public static final int ZIPS_COL_STATE = 2;
+
+    public static final int ZIPS_COL_CITIES_POOL = 3;
+
+    public static final int ZIPS_COL_CITY = 4;
+
+    public static final int ZIPS_COL_LATITUDE = 5;
+
+    public static final int ZIPS_COL_LONGITUDE = 6;
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: ResourcesCompiler <directory of the text files>");
+        }
+
+        File dir = new File(args[0]);
+        for (String name : NAMES_FILES) {
+            compileFile(dir, name);
+        }
+        compileFile(dir, COMPANIES_FILE);
+        compileFile(dir, US_ZIPS_FILE);
+    }
+
+    protected static void compileFile(File inDir, String inName) throws IOException {
+
+        File txt = new File(inDir, inName + ".txt");
+        if (!txt.exists()) {
+            log.warn(txt.getAbsolutePath() + " not found");
+            return;
+        }
+
+        ColumnsFile compiled;
+        try (InputStream in = new FileInputStream(txt)) {
+            if (COMPANIES_FILE.equals(inName)) {
+                compiled = compileCompanies(in);
+            } else if (US_ZIPS_FILE.equals(inName)) {
+                compiled = compileUSZips(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            } else {
+                compiled = compileNames(in);
+            }
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(inDir, inName + ".bin")))) {
+            compiled.write(out);
+        }
+    }
+
+    /**
+     * One name per line, one column
+     *
+     * @since 8.10
+     */
+    public static ColumnsFile compileNames(InputStream inStream) throws IOException {
+
+        return new ColumnsFile().add(PackedStringTable.load(inStream));
+    }
+
+    /**
+     * 3 words per line, separated by a tab, one column per word
+     *
+     * @since 8.10
+     */
+    public static ColumnsFile compileCompanies(InputStream inStream) throws IOException {
+
+        PackedStringTable.Builder comps1 = new PackedStringTable.Builder();
+        PackedStringTable.Builder comps2 = new PackedStringTable.Builder();
+        PackedStringTable.Builder comps3 = new PackedStringTable.Builder();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inStream, StandardCharsets.UTF_8));
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            count += 1;
+            if (count == 1 && line.startsWith("\uFEFF")) {
+                line = line.substring(1);
+            }
+            if (!line.isEmpty()) {
+                String[] elements = line.split("\t");
+                if (elements.length > 2) {
+                    comps1.add(elements[0]);
+                    comps2.add(elements[1]);
+                    comps3.add(elements[2]);
+                } else {
+                    log.error("Line #" + count + " does not contain at least 3 elements");
+                }
+            } else {
+                log.error("Line #" + count + " is empty");
+            }
+        }
+
+        return new ColumnsFile().add(comps1.build()).add(comps2.build()).add(comps3.build());
+    }
+
+    /**
+     * zipcode (tab) state code (tab) city (tab) latitude (tab) longitude. See the <code>ZIPS_COL_XXX</code> constants
+     * for the columns.
+     *
+     * @since 8.10
+     */
+    public static ColumnsFile compileUSZips(BufferedReader inReader) throws IOException {
+
+        PackedStringTable.Builder zips = new PackedStringTable.Builder();
+        PackedStringTable.Builder statesPool = new PackedStringTable.Builder();
+        PackedStringTable.Builder citiesPool = new PackedStringTable.Builder();
+        HashMap<String, Integer> statesIndices = new HashMap<String, Integer>();
+        HashMap<String, Integer> citiesIndices = new HashMap<String, Integer>();
+        IntArray states = new IntArray();
+        IntArray cities = new IntArray();
+        DoubleArray latitudes = new DoubleArray();
+        DoubleArray longitudes = new DoubleArray();
+
+        int count = 0;
+        String line;
+        while ((line = inReader.readLine()) != null) {
+            count += 1;
+            if (!line.isEmpty()) {
+                String[] elements = line.split("\t");
+                if (elements.length > 4) {
+                    zips.add(elements[0]);
+                    states.add(pool(elements[1], statesPool, statesIndices));
+                    cities.add(pool(elements[2], citiesPool, citiesIndices));
+                    latitudes.add(Double.parseDouble(elements[3]));
+                    longitudes.add(Double.parseDouble(elements[4]));
+                } else {
+                    log.error("Line #" + count + " does not contain at least 5 elements");
+                }
+            } else {
+                log.error("Line #" + count + " is empty");
+            }
+        }
+
+        return new ColumnsFile().add(zips.build())
+                                .add(statesPool.build())
+                                .add(states.toArray())
+                                .add(citiesPool.build())
+                                .add(cities.toArray())
+                                .add(latitudes.toArray())
+                                .add(longitudes.toArray());
+    }
+
+    protected static int pool(String inValue, PackedStringTable.Builder inPool, HashMap<String, Integer> inIndices) {
+
+        Integer idx = inIndices.get(inValue);
+        if (idx == null) {
+            idx = inPool.size();
+            inPool.add(inValue);
+            inIndices.put(inValue, idx);
+        }
+
+        return idx;
+    }
+
+    protected static class IntArray {
+
+        int[] values = new int[1024];
+
+        int size = 0;
+
+        void add(int inValue) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = inValue;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    protected static class DoubleArray {
+
+        double[] values = new double[1024];
+
+        int size = 0;
+
+        void add(double inValue) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = inValue;
+        }
+
+        double[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+}
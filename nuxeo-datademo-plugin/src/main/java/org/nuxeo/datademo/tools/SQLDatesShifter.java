@@ -0,0 +1,292 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.schema.CompositeType;
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.SchemaManager;
+import org.nuxeo.ecm.core.schema.types.Schema;
+import org.nuxeo.ecm.core.storage.sql.RepositoryImpl;
+import org.nuxeo.ecm.core.storage.sql.coremodel.SQLRepositoryService;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.datasource.ConnectionHelper;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Shifts all the date fields of a VCS (SQL) repository using a few <code>UPDATE</code> statements run directly on the
+ * database, without loading any <code>DocumentModel</code>.
+ * <p>
+ * One statement is built per schema table (updating all its date columns at once) and one per collection table of a
+ * list of dates. Tables are named following the VCS conventions: the schema table is the name of the schema, the
+ * column is the name of the field, and a list field is stored in a collection table named after the prefixed name of
+ * the field (<code>dc:subjects</code> => <code>dc_subjects</code>) whose value column is <code>item</code>.
+ * <p>
+ * WARNINGS:
+ * <ul>
+ * <li>Date fields inside complex fields are <i>not</i> handled here (they are stored in separate tables linked via the
+ * hierarchy). Use <code>getComplexDateFields()</code> to get them and update them the usual way.</li>
+ * <li>The caches of the repository are cleared once the statements are committed (see <code>clearCaches()</code>).
+ * On a cluster, this is done only on the current node: the other nodes must be restarted (or their caches cleared)
+ * once the update is done.</li>
+ * <li>No event is fired, no listener is called.</li>
+ * </ul>
+ *
+ * @since 8.10
+ */
+public class SQLDatesShifter {
+
+    private static final Log log = LogFactory.getLog(SQLDatesShifter.class);
+
+    public static final String DATASOURCE_PREFIX = "jdbc/repository_";
+
+    public static final String COLLECTION_ITEM_COLUMN = "item";
+
+    protected String repositoryName;
+
+    protected String dataSourceName;
+
+    protected int diffInDays;
+
+    public SQLDatesShifter(String inRepositoryName, int inDays) {
+
+        repositoryName = inRepositoryName;
+        dataSourceName = DATASOURCE_PREFIX + inRepositoryName;
+        diffInDays = inDays;
+    }
+
+    /**
+     * Returns <code>true</code> if the repository is a VCS (SQL) repository
+     *
+     * @param inRepositoryName
+     * @return
+     * @since 8.10
+     */
+    public static boolean isSQLRepository(String inRepositoryName) {
+
+        return getRepositoryImpl(inRepositoryName) != null;
+    }
+
+    protected static RepositoryImpl getRepositoryImpl(String inRepositoryName) {
+
+        SQLRepositoryService sqlRepositoryService = Framework.getService(SQLRepositoryService.class);
+        if (sqlRepositoryService == null) {
+            return null;
+        }
+        try {
+            return sqlRepositoryService.getRepositoryImpl(inRepositoryName);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the names of all the schemas used by a document type or a facet (so the ones which have a table in the
+     * database)
+     *
+     * @return
+     * @since 8.10
+     */
+    protected Set<String> getStoredSchemas() {
+
+        SchemaManager sm = Framework.getService(SchemaManager.class);
+        LinkedHashSet<String> names = new LinkedHashSet<String>();
+
+        for (DocumentType dt : sm.getDocumentTypes()) {
+            names.addAll(Arrays.asList(dt.getSchemaNames()));
+        }
+        for (CompositeType facet : sm.getFacets()) {
+            names.addAll(Arrays.asList(facet.getSchemaNames()));
+        }
+
+        return names;
+    }
+
+    /**
+     * Returns the tables to update: the key is the table, the value is the list of date columns to update.
+     *
+     * @return
+     * @since 8.10
+     */
+    public LinkedHashMap<String, List<String>> getTablesAndColumns() {
+
+        SchemaManager sm = Framework.getService(SchemaManager.class);
+        LinkedHashMap<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+
+        for (String schemaName : getStoredSchemas()) {
+            Schema schema = sm.getSchema(schemaName);
+            ArrayList<String> columns = new ArrayList<String>();
+            for (XPathFieldInfo info : DateFieldsPlanCache.getSchemaDateFields(schema)) {
+                String xpath = info.getXPath();
+                if (xpath.indexOf('/') > -1) {
+                    // In a complex field, not handled
+                    continue;
+                }
+                if (info.isList()) {
+                    ArrayList<String> itemColumn = new ArrayList<String>();
+                    itemColumn.add(COLLECTION_ITEM_COLUMN);
+                    result.put(xpath.replace(':', '_'), itemColumn);
+                } else {
+                    columns.add(xpath.substring(xpath.indexOf(':') + 1));
+                }
+            }
+            if (columns.size() > 0) {
+                result.put(schema.getName(), columns);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the date fields of <code>inFieldsInfo</code> which are stored in complex fields, and so are not handled
+     * by the SQL statements.
+     *
+     * @param inFieldsInfo
+     * @return
+     * @since 8.10
+     */
+    public static ArrayList<XPathFieldInfo> getComplexDateFields(List<XPathFieldInfo> inFieldsInfo) {
+
+        ArrayList<XPathFieldInfo> result = new ArrayList<XPathFieldInfo>();
+        for (XPathFieldInfo info : inFieldsInfo) {
+            if (info.getXPath().indexOf('/') > -1) {
+                result.add(info);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the SQL expression adding the days to <code>inColumn</code>, depending on the database.
+     *
+     * @param inDatabaseName as returned by <code>DatabaseMetaData#getDatabaseProductName()</code>
+     * @param inColumn
+     * @return
+     * @since 8.10
+     */
+    public String buildShiftExpression(String inDatabaseName, String inColumn) {
+
+        if (inDatabaseName.startsWith("PostgreSQL")) {
+            return inColumn + " + INTERVAL '" + diffInDays + " days'";
+        } else if (inDatabaseName.startsWith("H2")) {
+            return "DATEADD('DAY', " + diffInDays + ", " + inColumn + ")";
+        } else if (inDatabaseName.startsWith("MySQL")) {
+            return "DATE_ADD(" + inColumn + ", INTERVAL " + diffInDays + " DAY)";
+        } else if (inDatabaseName.startsWith("Oracle")) {
+            return inColumn + " + NUMTODSINTERVAL(" + diffInDays + ", 'DAY')";
+        } else if (inDatabaseName.startsWith("Microsoft SQL Server")) {
+            return "DATEADD(DAY, " + diffInDays + ", " + inColumn + ")";
+        }
+
+        throw new NuxeoException("Database <" + inDatabaseName + "> is not handled");
+    }
+
+    /**
+     * Builds the <code>UPDATE</code> statements
+     *
+     * @param inDatabaseName as returned by <code>DatabaseMetaData#getDatabaseProductName()</code>
+     * @return
+     * @since 8.10
+     */
+    public List<String> buildStatements(String inDatabaseName) {
+
+        ArrayList<String> statements = new ArrayList<String>();
+
+        LinkedHashMap<String, List<String>> tablesAndColumns = getTablesAndColumns();
+        for (String table : tablesAndColumns.keySet()) {
+            ArrayList<String> sets = new ArrayList<String>();
+            for (String column : tablesAndColumns.get(table)) {
+                sets.add(column + " = " + buildShiftExpression(inDatabaseName, column));
+            }
+            statements.add("UPDATE " + table + " SET " + StringUtils.join(sets, ", "));
+        }
+
+        return statements;
+    }
+
+    /**
+     * Runs the statements in a new transaction, commits it, then clears the caches of the repository. The current
+     * transaction (if any) is committed first, so all pending changes are in the database before the update.
+     *
+     * @return the total number of updated rows
+     * @since 8.10
+     */
+    public long run() {
+
+        long count = 0;
+
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        try (Connection connection = ConnectionHelper.getConnection(dataSourceName)) {
+            String databaseName = connection.getMetaData().getDatabaseProductName();
+            try (Statement st = connection.createStatement()) {
+                for (String sql : buildStatements(databaseName)) {
+                    log.debug(sql);
+                    count += st.executeUpdate(sql);
+                }
+            }
+        } catch (SQLException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw new NuxeoException("Error while shifting the dates", e);
+        } finally {
+            TransactionHelper.commitOrRollbackTransaction();
+            TransactionHelper.startTransaction();
+        }
+
+        clearCaches();
+
+        return count;
+    }
+
+    /**
+     * The rows were updated behind the back of the repository: its caches (and the caches of its sessions) must be
+     * cleared so the new values are read.
+     *
+     * @since 8.10
+     */
+    public void clearCaches() {
+
+        RepositoryImpl repository = getRepositoryImpl(repositoryName);
+        if (repository != null) {
+            repository.clearCaches();
+        }
+    }
+
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+
+    public void setDataSourceName(String inValue) {
+        dataSourceName = inValue;
+    }
+
+}
@@ -17,11 +17,23 @@
 package org.nuxeo.datademo.tools;
 
 import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.ScrollResult;
+import org.nuxeo.ecm.core.query.sql.NXQL;
 import org.nuxeo.ecm.platform.query.core.CoreQueryPageProviderDescriptor;
 import org.nuxeo.ecm.platform.query.nxql.CoreQueryDocumentPageProvider;
 
@@ -63,6 +75,22 @@ import org.nuxeo.ecm.platform.query.nxql.CoreQueryDocumentPageProvider;
  *     }
  * }
  * </code>
+ * <p>
+ * SCROLL MODE: When built with <code>inUseScroll</code> set to <code>true</code>, the class does not use the page
+ * provider, it walks a server-side cursor (the <code>CoreSession#scroll()</code> API): each page costs the same
+ * whatever its position, and the total number of documents is never computed. If the repository does not support
+ * scrolling, or if the user of the session is not an administrator (only administrators can scroll), a warning is
+ * logged and the ids are fetched once and kept in memory (the documents are still loaded page per page), which can be
+ * a lot on a large repository. Any other error is thrown. The end of the results is given by the ids: a batch whose
+ * documents were all deleted since, or cannot be read by the user, is skipped. In this mode, navigation is forward
+ * only: <code>hasPreviousPage()</code> always returns <code>false</code>, <code>previousPage()</code> and
+ * <code>lastPage()</code> throw an <code>UnsupportedOperationException</code>, and <code>firstPage()</code> re-runs
+ * the query.
+ * <p>
+ * NO TOTAL COUNT MODE: After <code>setComputeTotalCount(false)</code> (before the first query), the pages are fetched
+ * with OFFSET/LIMIT, but the total number of documents is never computed: each query fetches one more document than
+ * the page size, to know if there is a next page. Navigation is the same as with the page provider, except
+ * <code>lastPage()</code>, which throws an <code>UnsupportedOperationException</code>.
  *
  * @since 7.1
  */
@@ -73,15 +101,59 @@ public class SimpleNXQLDocumentsPageProvider {
 
     public static final int DEFAULT_DOCS_PER_PAGE = 500;
 
+    // How long the server keeps the scroll cursor between two pages
+    public static final int SCROLL_KEEP_ALIVE_SECONDS = 300;
+
+    private static final Log log = LogFactory.getLog(SimpleNXQLDocumentsPageProvider.class);
+
+    protected static final Pattern SELECT_ALL_PATTERN = Pattern.compile("^\\s*SELECT\\s+\\*\\s+FROM\\s+",
+            Pattern.CASE_INSENSITIVE);
+
     CoreQueryDocumentPageProvider coreQueryPP;
 
     boolean noMoreDocs = false;
 
+    // Scroll and no total count modes
+    boolean useScroll = false;
+
+    boolean computeTotalCount = true;
+
+    CoreSession session;
+
+    String query;
+
+    int pageSize;
+
+    PageCursor cursor = null;
+
+    List<DocumentModel> currentPage = null;
+
+    int currentIndex = 0;
+
     public SimpleNXQLDocumentsPageProvider(CoreSession inSession,
             String inQuery, int inDocsPerPage) {
 
-        int pageSize = inDocsPerPage <= 0 ? DEFAULT_DOCS_PER_PAGE
+        this(inSession, inQuery, inDocsPerPage, false);
+    }
+
+    /**
+     * Same as the other constructors. If <code>inUseScroll</code> is <code>true</code>, the documents are walked
+     * with a server-side cursor, see the class documentation.
+     *
+     * @param inSession
+     * @param inQuery
+     * @param inDocsPerPage
+     * @param inUseScroll
+     * @since 8.10
+     */
+    public SimpleNXQLDocumentsPageProvider(CoreSession inSession, String inQuery, int inDocsPerPage,
+            boolean inUseScroll) {
+
+        pageSize = inDocsPerPage <= 0 ? DEFAULT_DOCS_PER_PAGE
                 : inDocsPerPage;
+        session = inSession;
+        query = inQuery;
+        useScroll = inUseScroll;
 
         coreQueryPP = new CoreQueryDocumentPageProvider();
         CoreQueryPageProviderDescriptor ppDesc = new CoreQueryPageProviderDescriptor();
@@ -102,6 +174,10 @@ public class SimpleNXQLDocumentsPageProvider {
     }
     
     public void firstQuery() {
+        if (usePageCursor()) {
+            openCursor();
+            return;
+        }
         coreQueryPP.setCurrentPageIndex(0);
         coreQueryPP.setCurrentPageOffset(0);
         coreQueryPP.getCurrentPage();
@@ -111,33 +187,65 @@ public class SimpleNXQLDocumentsPageProvider {
         if (noMoreDocs) {
             return false;
         }
+        if (usePageCursor()) {
+            ensureCursor();
+            return currentPage.size() > 0;
+        }
         return coreQueryPP.getCurrentPageSize() > 0;
     }
 
     public List<DocumentModel> getDocuments() {
+        if (usePageCursor()) {
+            ensureCursor();
+            return currentPage;
+        }
         return coreQueryPP.getCurrentPage();
     }
 
     public boolean hasPreviousPage() {
+        if (usePageCursor()) {
+            ensureCursor();
+            return cursor.hasPrevious();
+        }
         return coreQueryPP.isPreviousPageAvailable();
     }
 
     public boolean hasNextPage() {
+        if (usePageCursor()) {
+            ensureCursor();
+            return cursor.hasNext();
+        }
         return coreQueryPP.isNextPageAvailable();
     }
 
     public long getCurrentPageIndex() {
+        if (usePageCursor()) {
+            ensureCursor();
+            return cursor.getPageIndex();
+        }
         return coreQueryPP.getCurrentPageIndex();
     }
 
     public void firstPage() {
+        if (usePageCursor()) {
+            openCursor();
+            return;
+        }
         coreQueryPP.firstPage();
         coreQueryPP.getCurrentPage();
     }
 
     public void previousPage() {
+        if (useScroll) {
+            throw new UnsupportedOperationException("previousPage() is not available in scroll mode");
+        }
         noMoreDocs = true;
         if (hasPreviousPage()) {
+            if (usePageCursor()) {
+                noMoreDocs = false;
+                setCurrentPage(cursor.previous());
+                return;
+            }
             coreQueryPP.previousPage();
             coreQueryPP.getCurrentPage();
         } else {
@@ -148,6 +256,10 @@ public class SimpleNXQLDocumentsPageProvider {
     public void nextPage() {
         if (hasNextPage()) {
             noMoreDocs = false;
+            if (usePageCursor()) {
+                setCurrentPage(cursor.next());
+                return;
+            }
             coreQueryPP.nextPage();
             coreQueryPP.getCurrentPage();
         } else {
@@ -156,6 +268,9 @@ public class SimpleNXQLDocumentsPageProvider {
     }
 
     public void lastPage() {
+        if (usePageCursor()) {
+            throw new UnsupportedOperationException("lastPage() is not available without the total count");
+        }
         coreQueryPP.lastPage();
         coreQueryPP.getCurrentPage();
     }
@@ -171,16 +286,33 @@ public class SimpleNXQLDocumentsPageProvider {
         if(noMoreDocs) {
             return null;
         }
+        if (usePageCursor()) {
+            ensureCursor();
+            return currentIndex < currentPage.size() ? currentPage.get(currentIndex) : null;
+        }
         return coreQueryPP.getCurrentEntry();
     }
     
     public boolean hasPreviousDocument() {
+        if (usePageCursor()) {
+            ensureCursor();
+            return currentIndex > 0 || cursor.hasPrevious();
+        }
         return coreQueryPP.isPreviousEntryAvailable();
     }
     
     public void previousDocument() {
         if(hasPreviousDocument()) {
             noMoreDocs = false;
+            if (usePageCursor()) {
+                if (currentIndex > 0) {
+                    currentIndex -= 1;
+                } else {
+                    setCurrentPage(cursor.previous());
+                    currentIndex = currentPage.size() - 1;
+                }
+                return;
+            }
             coreQueryPP.previousEntry();
         } else {
             noMoreDocs = true;
@@ -188,16 +320,370 @@ public class SimpleNXQLDocumentsPageProvider {
     }
     
     public boolean hasNextDocument() {
+        if (usePageCursor()) {
+            ensureCursor();
+            return currentIndex + 1 < currentPage.size() || cursor.hasNext();
+        }
         return coreQueryPP.isNextEntryAvailable();
     }
     
     public void nextDocument() {
         if(hasNextDocument()) {
             noMoreDocs = false;
+            if (usePageCursor()) {
+                if (currentIndex + 1 < currentPage.size()) {
+                    currentIndex += 1;
+                } else {
+                    setCurrentPage(cursor.next());
+                }
+                return;
+            }
             coreQueryPP.nextEntry();
         } else {
             noMoreDocs = true;
         }
     }
 
+    public boolean isUseScroll() {
+        return useScroll;
+    }
+
+    public boolean getComputeTotalCount() {
+        return computeTotalCount;
+    }
+
+    /**
+     * When <code>false</code>, the total number of documents is never computed, see the class documentation. Must be
+     * called before the first query.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setComputeTotalCount(boolean inValue) {
+        computeTotalCount = inValue;
+    }
+
+    /*
+     * true when the pages are not handled by the page provider (scroll or no total count mode)
+     */
+    protected boolean usePageCursor() {
+        return useScroll || !computeTotalCount;
+    }
+
+    /*
+     * True if inError (or one of its causes) is an UnsupportedOperationException, thrown by the repositories which
+     * cannot scroll
+     */
+    protected static boolean isScrollNotSupported(Throwable inError) {
+
+        for (Throwable e = inError; e != null; e = e.getCause()) {
+            if (e instanceof UnsupportedOperationException) {
+                return true;
+            }
+            if (e.getCause() == e) {
+                break;
+            }
+        }
+
+        return false;
+    }
+
+    /*
+     * CoreSession#scroll() throws a NuxeoException when the user is not an administrator
+     */
+    protected static boolean isAdministrator(CoreSession inSession) {
+
+        Principal principal = inSession.getPrincipal();
+        return principal instanceof NuxeoPrincipal && ((NuxeoPrincipal) principal).isAdministrator();
+    }
+
+    /*
+     * (Re)opens the cursor and loads the first page
+     */
+    protected void openCursor() {
+
+        if (useScroll) {
+            if (!isAdministrator(session)) {
+                log.warn("Only administrators can scroll, all the ids of the query are loaded in memory");
+                cursor = new ScrollPageCursor(new InMemoryIdsCursor(session, query, pageSize));
+            } else {
+                try {
+                    cursor = new ScrollPageCursor(new RepositoryIdsCursor(session, query, pageSize));
+                } catch (RuntimeException e) {
+                    // Any other error (bad query, ...) is not hidden
+                    if (!isScrollNotSupported(e)) {
+                        throw e;
+                    }
+                    log.warn("Scroll is not supported by the repository, all the ids of the query are loaded in "
+                            + "memory: " + e.getMessage());
+                    cursor = new ScrollPageCursor(new InMemoryIdsCursor(session, query, pageSize));
+                }
+            }
+        } else {
+            cursor = new NoCountPageCursor();
+        }
+        noMoreDocs = false;
+        setCurrentPage(cursor.first());
+    }
+
+    protected void ensureCursor() {
+        if (cursor == null) {
+            openCursor();
+        }
+    }
+
+    protected void setCurrentPage(List<DocumentModel> inDocs) {
+        currentPage = inDocs;
+        currentIndex = 0;
+    }
+
+    protected List<DocumentModel> loadDocuments(List<String> inIds) {
+
+        if (inIds.size() == 0) {
+            return new ArrayList<DocumentModel>();
+        }
+
+        DocumentRef[] refs = new DocumentRef[inIds.size()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = new IdRef(inIds.get(i));
+        }
+
+        return session.getDocuments(refs);
+    }
+
+    /**
+     * Pages of documents when the page provider is not used. <code>next()</code> and <code>previous()</code> must
+     * be called only after checking <code>hasNext()</code>/<code>hasPrevious()</code>.
+     *
+     * @since 8.10
+     */
+    protected static abstract class PageCursor {
+
+        long pageIndex = 0;
+
+        protected abstract List<DocumentModel> first();
+
+        protected abstract boolean hasNext();
+
+        protected abstract List<DocumentModel> next();
+
+        protected abstract boolean hasPrevious();
+
+        protected abstract List<DocumentModel> previous();
+
+        protected long getPageIndex() {
+            return pageIndex;
+        }
+    }
+
+    /**
+     * OFFSET/LIMIT pages without total count: <code>pageSize + 1</code> documents are fetched, the extra one only
+     * tells there is a next page.
+     *
+     * @since 8.10
+     */
+    protected class NoCountPageCursor extends PageCursor {
+
+        boolean hasMore = false;
+
+        @Override
+        protected List<DocumentModel> first() {
+            return fetchPage(0);
+        }
+
+        @Override
+        protected boolean hasNext() {
+            return hasMore;
+        }
+
+        @Override
+        protected List<DocumentModel> next() {
+            return fetchPage(pageIndex + 1);
+        }
+
+        @Override
+        protected boolean hasPrevious() {
+            return pageIndex > 0;
+        }
+
+        @Override
+        protected List<DocumentModel> previous() {
+            return fetchPage(pageIndex - 1);
+        }
+
+        protected List<DocumentModel> fetchPage(long inPageIndex) {
+
+            List<DocumentModel> docs = session.query(query, null, pageSize + 1, inPageIndex * pageSize, false);
+            hasMore = docs.size() > pageSize;
+            pageIndex = inPageIndex;
+            if (hasMore) {
+                return new ArrayList<DocumentModel>(docs.subList(0, pageSize));
+            }
+            return docs;
+        }
+    }
+
+    /**
+     * Forward only pages, from a cursor of ids. The next page is loaded in advance, so <code>hasNext()</code> does not
+     * need any count. There is no more page when the batch of ids is empty: a batch whose documents cannot be loaded
+     * (deleted since the cursor was opened, or not readable) is skipped.
+     *
+     * @since 8.10
+     */
+    protected class ScrollPageCursor extends PageCursor {
+
+        IdsCursor ids;
+
+        List<DocumentModel> nextPage = null;
+
+        protected ScrollPageCursor(IdsCursor inIds) {
+            ids = inIds;
+        }
+
+        @Override
+        protected List<DocumentModel> first() {
+            pageIndex = 0;
+            nextPage = null;
+            return loadFirstNonEmpty(ids.firstIds());
+        }
+
+        @Override
+        protected boolean hasNext() {
+            if (nextPage == null) {
+                nextPage = loadFirstNonEmpty(ids.nextIds());
+            }
+            return nextPage.size() > 0;
+        }
+
+        /*
+         * Loads the documents of inIds, or of the next batches while none of them can be loaded. Returns an empty list
+         * only when there is no more id.
+         */
+        protected List<DocumentModel> loadFirstNonEmpty(List<String> inIds) {
+
+            List<String> batch = inIds;
+            while (batch.size() > 0) {
+                List<DocumentModel> docs = loadDocuments(batch);
+                if (docs.size() > 0) {
+                    return docs;
+                }
+                batch = ids.nextIds();
+            }
+
+            return new ArrayList<DocumentModel>();
+        }
+
+        @Override
+        protected List<DocumentModel> next() {
+            hasNext();
+            List<DocumentModel> page = nextPage;
+            nextPage = null;
+            pageIndex += 1;
+            return page;
+        }
+
+        @Override
+        protected boolean hasPrevious() {
+            return false;
+        }
+
+        @Override
+        protected List<DocumentModel> previous() {
+            throw new UnsupportedOperationException("previousPage() is not available in scroll mode");
+        }
+    }
+
+    /**
+     * Returns the ids of the documents, batch after batch. An empty list means there is no more document.
+     *
+     * @since 8.10
+     */
+    protected static abstract class IdsCursor {
+
+        protected abstract List<String> firstIds();
+
+        protected abstract List<String> nextIds();
+    }
+
+    /**
+     * Uses the scroll API of the repository: the server keeps the cursor between two batches
+     *
+     * @since 8.10
+     */
+    protected static class RepositoryIdsCursor extends IdsCursor {
+
+        CoreSession session;
+
+        ScrollResult scroll;
+
+        boolean first = true;
+
+        protected RepositoryIdsCursor(CoreSession inSession, String inQuery, int inBatchSize) {
+            session = inSession;
+            scroll = session.scroll(inQuery, inBatchSize, SCROLL_KEEP_ALIVE_SECONDS);
+        }
+
+        @Override
+        protected List<String> firstIds() {
+            first = false;
+            return scroll.getResultIds();
+        }
+
+        @Override
+        protected List<String> nextIds() {
+            if (first) {
+                return firstIds();
+            }
+            if (!scroll.hasResults()) {
+                return new ArrayList<String>();
+            }
+            scroll = session.scroll(scroll.getScrollId());
+            return scroll.getResultIds();
+        }
+    }
+
+    /**
+     * In-memory stand-in for repositories without scroll support: all the ids are fetched once (only the ids, with a
+     * projection query), then returned batch after batch.
+     *
+     * @since 8.10
+     */
+    protected static class InMemoryIdsCursor extends IdsCursor {
+
+        ArrayList<String> ids = new ArrayList<String>();
+
+        int batchSize;
+
+        int offset = 0;
+
+        protected InMemoryIdsCursor(CoreSession inSession, String inQuery, int inBatchSize) {
+
+            batchSize = inBatchSize;
+
+            String nxql = SELECT_ALL_PATTERN.matcher(inQuery).replaceFirst("SELECT " + NXQL.ECM_UUID + " FROM ");
+            IterableQueryResult result = inSession.queryAndFetch(nxql, NXQL.NXQL);
+            try {
+                for (Map<String, Serializable> row : result) {
+                    ids.add((String) row.get(NXQL.ECM_UUID));
+                }
+            } finally {
+                result.close();
+            }
+        }
+
+        @Override
+        protected List<String> firstIds() {
+            offset = 0;
+            return nextIds();
+        }
+
+        @Override
+        protected List<String> nextIds() {
+            int end = Math.min(offset + batchSize, ids.size());
+            List<String> batch = new ArrayList<String>(ids.subList(offset, end));
+            offset = end;
+            return batch;
+        }
+    }
+
 }
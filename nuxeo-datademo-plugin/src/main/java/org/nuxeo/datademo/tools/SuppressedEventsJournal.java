@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.ecm.core.api.NuxeoException;
+
+/**
+ * Append-only local file recording the events which were not handled by disabled listeners: one line per event, with
+ * the id of the document and the name of the event, separated by a tab.
+ * <p>
+ * Written while the listeners are disabled (see <code>ListenersDisabler#setCapturedListeners()</code>), then read by
+ * batches (see <code>Reader</code>) to replay the events once the listeners are restored.
+ *
+ * @since 8.10
+ */
+public class SuppressedEventsJournal implements Closeable {
+
+    protected File file;
+
+    protected BufferedWriter writer;
+
+    protected long count = 0;
+
+    /**
+     * Creates a new journal in a temporary file
+     *
+     * @since 8.10
+     */
+    public SuppressedEventsJournal() {
+
+        try {
+            file = File.createTempFile("datademo-suppressed-events-", ".journal");
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot create the journal of suppressed events", e);
+        }
+    }
+
+    /**
+     * Can be called by several threads
+     *
+     * @param inDocId
+     * @param inEventName
+     * @since 8.10
+     */
+    public synchronized void append(String inDocId, String inEventName) {
+
+        if (writer == null) {
+            throw new RuntimeException("The journal is closed.");
+        }
+
+        try {
+            writer.write(inDocId);
+            writer.write('\t');
+            writer.write(inEventName);
+            writer.write('\n');
+            count += 1;
+        } catch (IOException e) {
+            throw new NuxeoException("Cannot write in " + file.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new NuxeoException("Cannot close " + file.getAbsolutePath(), e);
+            } finally {
+                writer = null;
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Reads a journal by batches. Each entry is a <code>String[2]</code>: the id of the document and the name of the
+     * event.
+     *
+     * @since 8.10
+     */
+    public static class Reader implements Closeable {
+
+        protected BufferedReader reader;
+
+        public Reader(File inFile) throws IOException {
+
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(inFile), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Returns the next <code>inMax</code> entries (or less at the end of the journal, an empty list when it is
+         * done)
+         *
+         * @param inMax
+         * @return the entries
+         * @throws IOException
+         * @since 8.10
+         */
+        public List<String[]> next(int inMax) throws IOException {
+
+            ArrayList<String[]> entries = new ArrayList<String[]>();
+            String line;
+            while (entries.size() < inMax && (line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    entries.add(new String[] { line.substring(0, tab), line.substring(tab + 1) });
+                }
+            }
+
+            return entries;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * <code>CommitPolicy</code> committing as soon as one of the thresholds is reached:
+ * <ul>
+ * <li>A number of documents</li>
+ * <li>A duration of the transaction</li>
+ * <li>An estimated size of the values modified in the saved documents</li>
+ * </ul>
+ * A threshold <= 0 is not used.
+ * <p>
+ * The default duration is half of the transaction timeout (<code>nuxeo.db.transactiontimeout</code>, 300s if not
+ * set), so a long transaction is committed well before it times out.
+ *
+ * @since 8.10
+ */
+public class ThresholdCommitPolicy implements CommitPolicy {
+
+    public static final String TRANSACTION_TIMEOUT_PROPERTY = "nuxeo.db.transactiontimeout";
+
+    public static final int DEFAULT_TRANSACTION_TIMEOUT_S = 300;
+
+    protected int maxDocs;
+
+    protected long maxDurationMs;
+
+    protected long maxDirtyBytes;
+
+    public ThresholdCommitPolicy(int inMaxDocs) {
+
+        this(inMaxDocs, getDefaultMaxDurationMs(), 0);
+    }
+
+    public ThresholdCommitPolicy(int inMaxDocs, long inMaxDurationMs, long inMaxDirtyBytes) {
+
+        maxDocs = inMaxDocs;
+        maxDurationMs = inMaxDurationMs;
+        maxDirtyBytes = inMaxDirtyBytes;
+    }
+
+    /**
+     * Returns half of the transaction timeout, in milliseconds
+     *
+     * @since 8.10
+     */
+    public static long getDefaultMaxDurationMs() {
+
+        String timeout = Framework.getProperty(TRANSACTION_TIMEOUT_PROPERTY);
+        int seconds = NumberUtils.toInt(timeout, DEFAULT_TRANSACTION_TIMEOUT_S);
+        if (seconds <= 0) {
+            seconds = DEFAULT_TRANSACTION_TIMEOUT_S;
+        }
+
+        return seconds * 1000L / 2;
+    }
+
+    @Override
+    public boolean shouldCommit(int inDocCount, long inElapsedMs, long inDirtyBytes) {
+
+        if (inDocCount <= 0) {
+            return false;
+        }
+
+        return (maxDocs > 0 && inDocCount >= maxDocs) || (maxDurationMs > 0 && inElapsedMs >= maxDurationMs)
+                || (maxDirtyBytes > 0 && inDirtyBytes >= maxDirtyBytes);
+    }
+
+    @Override
+    public boolean usesDirtyBytes() {
+        return maxDirtyBytes > 0;
+    }
+
+    public int getMaxDocs() {
+        return maxDocs;
+    }
+
+    public long getMaxDurationMs() {
+        return maxDurationMs;
+    }
+
+    public long getMaxDirtyBytes() {
+        return maxDirtyBytes;
+    }
+
+}
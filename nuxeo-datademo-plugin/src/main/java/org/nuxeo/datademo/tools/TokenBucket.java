@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright 2016 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.datademo.tools;
+
+/**
+ * Token bucket rate limiter: tokens are added at <code>rate</code> per second, up to <code>capacity</code> (the
+ * allowed burst), and <code>acquire()</code> waits until enough tokens are available.
+ * <p>
+ * Used by <code>TransactionInLoop</code> to limit the number of documents saved per second, so a bulk update can run
+ * beside the regular activity of the server. The same instance can be shared by several threads (the limit is then
+ * global), and the rate can be changed at any time with <code>setRate()</code> (for example by code monitoring the
+ * load of the database).
+ *
+ * @since 8.10
+ */
+public class TokenBucket {
+
+    protected double rate;
+
+    protected double capacity;
+
+    protected double tokens;
+
+    protected long lastRefillNanos;
+
+    /**
+     * The capacity is one second of tokens
+     *
+     * @param inRate tokens per second
+     */
+    public TokenBucket(double inRate) {
+
+        this(inRate, Math.max(1, inRate));
+    }
+
+    public TokenBucket(double inRate, double inCapacity) {
+
+        if (inRate <= 0 || inCapacity < 1) {
+            throw new IllegalArgumentException("The rate must be > 0 and the capacity >= 1");
+        }
+
+        rate = inRate;
+        capacity = inCapacity;
+        tokens = inCapacity;
+        lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Waits until <code>inCount</code> tokens are available and takes them. If the thread is interrupted while
+     * waiting, returns without waiting more (the interrupted flag is restored).
+     *
+     * @param inCount
+     * @return the time waited, in milliseconds
+     * @since 8.10
+     */
+    public synchronized long acquire(int inCount) {
+
+        long waited = 0;
+        refill();
+        while (tokens < inCount) {
+            long waitMs = (long) Math.ceil(((Math.min(inCount, capacity) - tokens) / rate) * 1000);
+            try {
+                wait(Math.max(1, waitMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            waited += waitMs;
+            refill();
+            if (inCount > capacity && tokens >= capacity) {
+                // Cannot have more than capacity: take what is there and go into debt
+                break;
+            }
+        }
+        tokens -= inCount;
+
+        return waited;
+    }
+
+    /**
+     * Takes <code>inCount</code> tokens if they are available, without waiting.
+     *
+     * @param inCount
+     * @return <code>true</code> if the tokens were taken
+     * @since 8.10
+     */
+    public synchronized boolean tryAcquire(int inCount) {
+
+        refill();
+        if (tokens >= inCount) {
+            tokens -= inCount;
+            return true;
+        }
+
+        return false;
+    }
+
+    protected void refill() {
+
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + ((now - lastRefillNanos) / 1000000000.0) * rate);
+        lastRefillNanos = now;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Changes the rate. The tokens already accumulated are kept.
+     *
+     * @param inRate tokens per second, must be > 0
+     * @since 8.10
+     */
+    public synchronized void setRate(double inRate) {
+
+        if (inRate <= 0) {
+            throw new IllegalArgumentException("The rate must be > 0");
+        }
+        refill();
+        rate = inRate;
+        notifyAll();
+    }
+
+    public double getCapacity() {
+        return capacity;
+    }
+
+}
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
+import org.apache.commons.lang.StringUtils;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
@@ -221,4 +222,52 @@ public class ToolsMisc {
 
         return result;
     }
+
+    /**
+     * Returns a list of NXQL conditions on <code>ecm:uuid</code> which split the whole id space in disjoint ranges.
+     * The list contains 16, 256, ... ranges: the first power of 16 which is >= <code>inMinCount</code>.
+     * <p>
+     * Each condition can be added to the WHERE clause of a query, for example:
+     * <code>ecm:uuid >= 'a0000000-0000-0000-0000-000000000000' AND ecm:uuid < 'b0000000-0000-0000-0000-000000000000'</code>
+     * <p>
+     * WARNING: This assumes the repository uses the default UUID ids (lowercase hexadecimal). With another kind of ids
+     * (sequence for example) documents would not be dispatched correctly.
+     *
+     * @param inMinCount
+     * @return the list of conditions
+     *
+     * @since 8.10
+     */
+    public static List<String> buildUUIDRangeConditions(int inMinCount) {
+
+        int digits = 1;
+        int count = 16;
+        while (count < inMinCount && digits < 4) {
+            digits += 1;
+            count *= 16;
+        }
+
+        ArrayList<String> conditions = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String condition = "ecm:uuid >= '" + buildUUIDBound(i, digits) + "'";
+            if (i < count - 1) {
+                condition += " AND ecm:uuid < '" + buildUUIDBound(i + 1, digits) + "'";
+            }
+            conditions.add(condition);
+        }
+
+        return conditions;
+    }
+
+    /*
+     * Builds a UUID-formatted bound whose first inDigits hex digits are inValue, padded with zeros
+     */
+    protected static String buildUUIDBound(int inValue, int inDigits) {
+
+        String hex = StringUtils.leftPad(Integer.toHexString(inValue), inDigits, '0');
+        String full = StringUtils.rightPad(hex, 32, '0');
+
+        return full.substring(0, 8) + "-" + full.substring(8, 12) + "-" + full.substring(12, 16) + "-"
+                + full.substring(16, 20) + "-" + full.substring(20);
+    }
 }
@@ -16,8 +16,17 @@
  */
 package org.nuxeo.datademo.tools;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.DataModel;
 import org.nuxeo.runtime.transaction.TransactionHelper;
 
 /**
@@ -35,11 +44,35 @@ import org.nuxeo.runtime.transaction.TransactionHelper;
  * }
  * til.commitAndStartNewTransaction();
  * </code>
+ * <p>
+ * When <code>setBatchSaves(true)</code> is used, the documents are not saved one by one: they are kept in a buffer and
+ * saved together with <code>CoreSession#saveDocuments()</code> right before the commit (so there is one flush of the
+ * session per commit window). In this mode, <code>saveDocumentAndCommitIfNeeded()</code> returns the document as it
+ * was passed.
+ * <p>
+ * By default, the transaction is committed every <code>commitModulo</code> documents. A <code>CommitPolicy</code> can
+ * be used instead (see <code>setCommitPolicy()</code>), to also commit on the duration of the transaction or on the
+ * estimated size of the values modified in the saved documents (see <code>ThresholdCommitPolicy</code> and
+ * <code>DocumentSizeEstimator#estimateDirtyBytes()</code>). The number of documents saved per second can be limited
+ * with a <code>TokenBucket</code> (see <code>setRateLimiter()</code>).
+ * <p>
+ * RETRY MODE: When <code>setMaxRetries()</code> is called with a value > 0, the documents of the transaction are
+ * kept in memory and saved only when committing. If saving or committing fails, the transaction is rolled back and the
+ * window is retried, with an exponential backoff. If it still fails, the window is bisected: each half is committed
+ * separately, until the failing documents are isolated. They are then skipped (see <code>getFailedDocIds()</code>)
+ * and the other documents are committed. The documents are saved again as they are in memory, so a document failing
+ * on a concurrent update will fail again and be skipped. Saving a document clears its dirty flags, even if the
+ * transaction is then rolled back: the modified values are recorded when the document is passed to
+ * <code>saveDocument()</code>, and set again before each attempt, so the retried documents are still written.
  *
  * @since 7.1
  */
 public class TransactionInLoop {
 
+    private static final Log log = LogFactory.getLog(TransactionInLoop.class);
+
+    public static final long DEFAULT_RETRY_BACKOFF_MS = 100;
+
     public static final int COMMIT_MODUL0 = 50;
 
     protected int counter = 0;
@@ -50,6 +83,30 @@ public class TransactionInLoop {
 
     protected CoreSession session = null;
 
+    protected boolean batchSaves = false;
+
+    protected ArrayList<DocumentModel> pendingDocs = new ArrayList<DocumentModel>();
+
+    protected CommitPolicy commitPolicy = null;
+
+    protected TokenBucket rateLimiter = null;
+
+    protected int counterAtTransactionStart = 0;
+
+    protected long transactionStartMs = System.currentTimeMillis();
+
+    protected long dirtyBytes = 0;
+
+    protected int maxRetries = 0;
+
+    protected long retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+
+    protected ArrayList<String> failedDocIds = new ArrayList<String>();
+
+    // Retry mode: the modified values of the buffered documents (schema => field => value), see tryCommit()
+    protected IdentityHashMap<DocumentModel, HashMap<String, HashMap<String, Object>>> modifiedValues =
+            new IdentityHashMap<DocumentModel, HashMap<String, HashMap<String, Object>>>();
+
     /**
      * Contructor
      * 
@@ -101,9 +158,18 @@ public class TransactionInLoop {
      * @since 7.2
      */
     public void commitAndStartNewTransaction() {
-        session.save();
-        TransactionHelper.commitOrRollbackTransaction();
-        TransactionHelper.startTransaction();
+        if (maxRetries > 0) {
+            commitWindow();
+        } else {
+            flush();
+            session.save();
+            TransactionHelper.commitOrRollbackTransaction();
+            TransactionHelper.startTransaction();
+        }
+
+        counterAtTransactionStart = counter;
+        transactionStartMs = System.currentTimeMillis();
+        dirtyBytes = 0;
     }
 
     /**
@@ -119,13 +185,193 @@ public class TransactionInLoop {
      */
     public DocumentModel saveDocumentAndCommitIfNeeded(DocumentModel inDoc) {
 
-        inDoc = session.saveDocument(inDoc);
+        inDoc = saveDocument(inDoc);
         counter += 1;
         commitOrRollbackIfNeeded();
 
         return inDoc;
     }
 
+    /**
+     * Saves the document, or, in batch mode, adds it to the buffer of documents to save. The buffer never holds more
+     * than <code>commitModulo</code> documents: when it is full, it is flushed. In retry mode, the document is always
+     * added to the buffer, which is saved only when committing.
+     * <p>
+     * Does not increment the counter and does not commit: to be used when the caller handles the commits (calling
+     * <code>commitAndStartNewTransaction()</code> or <code>commitOrRollbackIfNeeded()</code>). If a rate limiter is
+     * set, waits until the document can be saved.
+     *
+     * @param inDoc
+     * @return the saved document, or <code>inDoc</code> in batch or retry mode
+     * @since 8.10
+     */
+    public DocumentModel saveDocument(DocumentModel inDoc) {
+
+        if (rateLimiter != null) {
+            rateLimiter.acquire(1);
+        }
+        if (commitPolicy != null && commitPolicy.usesDirtyBytes()) {
+            dirtyBytes += DocumentSizeEstimator.estimateDirtyBytes(inDoc);
+        }
+
+        if (maxRetries > 0) {
+            pendingDocs.add(inDoc);
+            modifiedValues.put(inDoc, getModifiedValues(inDoc));
+            return inDoc;
+        }
+
+        if (!batchSaves) {
+            return session.saveDocument(inDoc);
+        }
+
+        pendingDocs.add(inDoc);
+        if (pendingDocs.size() >= commitModulo) {
+            flush();
+        }
+
+        return inDoc;
+    }
+
+    /**
+     * Saves the buffered documents, if any, with a single call to <code>CoreSession#saveDocuments()</code>. Called
+     * automatically before each commit. Does nothing in retry mode, where the documents are saved when committing.
+     *
+     * @since 8.10
+     */
+    public void flush() {
+
+        if (maxRetries <= 0 && pendingDocs.size() > 0) {
+            session.saveDocuments(pendingDocs.toArray(new DocumentModel[pendingDocs.size()]));
+            pendingDocs.clear();
+        }
+    }
+
+    /*
+     * Retry mode: commits the buffered documents, retrying then bisecting the window if it fails
+     */
+    protected void commitWindow() {
+
+        ArrayList<DocumentModel> window = new ArrayList<DocumentModel>(pendingDocs);
+        pendingDocs.clear();
+
+        try {
+            if (!tryCommit(window, maxRetries)) {
+                if (window.size() == 0) {
+                    // Something else, done by the caller in this transaction, failed: nothing to isolate
+                    log.warn("Commit failed and there is no document to isolate, the transaction was rolled back");
+                } else {
+                    bisect(window);
+                }
+            }
+        } finally {
+            modifiedValues.clear();
+        }
+    }
+
+    /*
+     * Returns a copy of the dirty values of inDoc, per schema
+     */
+    protected static HashMap<String, HashMap<String, Object>> getModifiedValues(DocumentModel inDoc) {
+
+        HashMap<String, HashMap<String, Object>> values = new HashMap<String, HashMap<String, Object>>();
+        for (Map.Entry<String, DataModel> entry : inDoc.getDataModels().entrySet()) {
+            DataModel dm = entry.getValue();
+            if (dm.isDirty()) {
+                HashMap<String, Object> fields = new HashMap<String, Object>();
+                for (String field : dm.getDirtyFields()) {
+                    fields.put(field, dm.getData(field));
+                }
+                values.put(entry.getKey(), fields);
+            }
+        }
+
+        return values;
+    }
+
+    /*
+     * Sets again the values recorded by saveDocument(): a failed save cleared the dirty flags of the documents written
+     * before the failure, they would not be written again
+     */
+    protected void setModifiedValues(List<DocumentModel> inDocs) {
+
+        for (DocumentModel doc : inDocs) {
+            HashMap<String, HashMap<String, Object>> values = modifiedValues.get(doc);
+            if (values == null) {
+                continue;
+            }
+            for (Map.Entry<String, HashMap<String, Object>> schema : values.entrySet()) {
+                DataModel dm = doc.getDataModel(schema.getKey());
+                for (Map.Entry<String, Object> field : schema.getValue().entrySet()) {
+                    dm.setData(field.getKey(), field.getValue());
+                }
+            }
+        }
+    }
+
+    /*
+     * Commits the halves of inDocs separately, until the failing documents are isolated and skipped
+     */
+    protected void bisect(List<DocumentModel> inDocs) {
+
+        if (inDocs.size() == 1) {
+            DocumentModel doc = inDocs.get(0);
+            if (!tryCommit(inDocs, maxRetries)) {
+                log.warn("Skipping document " + doc.getId() + " (" + doc.getPathAsString() + "): it cannot be saved");
+                failedDocIds.add(doc.getId());
+            }
+            return;
+        }
+
+        int middle = inDocs.size() / 2;
+        List<DocumentModel> first = inDocs.subList(0, middle);
+        List<DocumentModel> second = inDocs.subList(middle, inDocs.size());
+        if (!tryCommit(first, 0)) {
+            bisect(first);
+        }
+        if (!tryCommit(second, 0)) {
+            bisect(second);
+        }
+    }
+
+    /*
+     * Saves inDocs and commits, at most 1 + inRetries times. Each failure rolls back the transaction, and a new one is
+     * started. Returns false if the last attempt failed
+     */
+    protected boolean tryCommit(List<DocumentModel> inDocs, int inRetries) {
+
+        long backoff = retryBackoffMs;
+        for (int attempt = 0; attempt <= inRetries; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                backoff *= 2;
+            }
+
+            try {
+                if (inDocs.size() > 0) {
+                    setModifiedValues(inDocs);
+                    session.saveDocuments(inDocs.toArray(new DocumentModel[inDocs.size()]));
+                }
+                session.save();
+                TransactionHelper.commitOrRollbackTransaction();
+                TransactionHelper.startTransaction();
+                return true;
+
+            } catch (RuntimeException e) {
+                log.debug("Commit of " + inDocs.size() + " document(s) failed (attempt " + (attempt + 1) + ")", e);
+                TransactionHelper.setTransactionRollbackOnly();
+                TransactionHelper.commitOrRollbackTransaction();
+                TransactionHelper.startTransaction();
+            }
+        }
+
+        return false;
+    }
+
     /**
      * If you handle the saving of the document and are using
      * <code>setCounter()</code> you can then also call this method to commit
@@ -134,7 +380,7 @@ public class TransactionInLoop {
      * @since 7.2
      */
     public void commitOrRollbackIfNeeded() {
-        if ((counter % commitModulo) == 0) {
+        if (shouldCommit()) {
             commitAndStartNewTransaction();
             if(sleepDurationAfterCommit > 0) {
                 try {
@@ -146,6 +392,25 @@ public class TransactionInLoop {
         }
     }
 
+    /**
+     * Returns <code>true</code> if the transaction must be committed: the counter is a multiple of
+     * <code>commitModulo</code>, or, if a <code>CommitPolicy</code> is set, the policy says so.
+     * <p>
+     * Useful when the caller must do something right before the commit, then calls
+     * <code>commitAndStartNewTransaction()</code>.
+     *
+     * @since 8.10
+     */
+    public boolean shouldCommit() {
+
+        if (commitPolicy == null) {
+            return (counter % commitModulo) == 0;
+        }
+
+        return commitPolicy.shouldCommit(counter - counterAtTransactionStart,
+                System.currentTimeMillis() - transactionStartMs, dirtyBytes);
+    }
+
     public int getCommitModulo() {
         return commitModulo;
     }
@@ -175,6 +440,7 @@ public class TransactionInLoop {
      */
     public void setCounter(int inValue) {
         counter = inValue;
+        counterAtTransactionStart = Math.min(counterAtTransactionStart, counter);
     }
 
     /**
@@ -191,9 +457,103 @@ public class TransactionInLoop {
     public int getSleepDurationAfterCommit() {
         return sleepDurationAfterCommit;
     }
-    
+
+    /**
+     * @deprecated since 8.10, use <code>setRateLimiter()</code>, which limits the throughput without blocking the loop
+     *             for a fixed time after each commit
+     */
+    @Deprecated
     public void setSleepDurationAfterCommit(int inValue) {
         sleepDurationAfterCommit = inValue;
     }
 
+    public CommitPolicy getCommitPolicy() {
+        return commitPolicy;
+    }
+
+    /**
+     * Sets the policy deciding when the transaction is committed. <code>null</code> (default) means every
+     * <code>commitModulo</code> documents.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setCommitPolicy(CommitPolicy inValue) {
+        commitPolicy = inValue;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Number of retries of a window whose commit failed, before bisecting it. <code>0</code> (default) disables the
+     * retry mode. Must be set before saving the first document.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setMaxRetries(int inValue) {
+        maxRetries = inValue > 0 ? inValue : 0;
+    }
+
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    /**
+     * Delay before the first retry. It is doubled for each next retry.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setRetryBackoffMs(long inValue) {
+        retryBackoffMs = inValue >= 0 ? inValue : DEFAULT_RETRY_BACKOFF_MS;
+    }
+
+    /**
+     * Returns the ids of the documents skipped in retry mode because they could not be saved
+     *
+     * @since 8.10
+     */
+    public List<String> getFailedDocIds() {
+        return failedDocIds;
+    }
+
+    public TokenBucket getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limits the number of documents saved per second: each saved document takes a token from
+     * <code>inValue</code>. <code>null</code> (default) means no limit.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setRateLimiter(TokenBucket inValue) {
+        rateLimiter = inValue;
+    }
+
+    public boolean isBatchSaves() {
+        return batchSaves;
+    }
+
+    /**
+     * When switching the batch mode off, the buffered documents are saved first.
+     *
+     * @param inValue
+     * @since 8.10
+     */
+    public void setBatchSaves(boolean inValue) {
+        if (!inValue) {
+            flush();
+        }
+        batchSaves = inValue;
+    }
+
+    public int getPendingCount() {
+        return pendingDocs.size();
+    }
+
 }
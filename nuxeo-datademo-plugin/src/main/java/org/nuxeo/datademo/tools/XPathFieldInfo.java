@@ -16,6 +16,8 @@
  */
 package org.nuxeo.datademo.tools;
 
+import java.io.Serializable;
+
 /**
  * utility class used to store information about a field via its xpath, so it
  * can be directly used with APIs such as get/setPropertyValue().
@@ -31,10 +33,14 @@ package org.nuxeo.datademo.tools;
  * <p>
  * You should first check the field is not empty using
  * <code>getPropertyValue(complexParentXPath);</code>
+ * <p>
+ * The class is <code>Serializable</code> so a list of <code>XPathFieldInfo</code> can be passed to a Work.
  *
  * @since 7.2
  */
-public class XPathFieldInfo {
+public class XPathFieldInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     protected String xpath;
 
@@ -19,21 +19,33 @@ package org.nuxeo.datademo.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
+import org.apache.commons.lang.StringUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.datademo.tools.AdaptivePageSizer;
 import org.nuxeo.datademo.tools.DocumentsCallback;
+import org.nuxeo.datademo.tools.DocumentSizeEstimator;
 import org.nuxeo.datademo.tools.DocumentsWalker;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.NuxeoException;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 import com.google.inject.Inject;
 
@@ -242,4 +254,367 @@ public class DocumentsWalkerTest {
 
         testUtils.endMethod();
     }
+
+    @Test
+    public void testDocumentsWalker_keyset() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 22;
+        int PAGE_SIZE = 5;
+        int EXPECTED_NUMBER_OF_PAGES = 5;
+
+        // The ORDER BY is replaced by ecm:uuid in keyset mode
+        String nxql = "SELECT * FROM File WHERE ecm:isProxy = 0 ORDER BY dc:title";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-doc-" + i, true);
+        }
+        coreSession.save();
+
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl();
+        DocumentsWalker dw = new DocumentsWalker(coreSession, nxql, PAGE_SIZE);
+        dw.setUseKeyset(true);
+
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertTrue(cb.wasNotInterrupted());
+        assertEquals(EXPECTED_NUMBER_OF_PAGES, cb.getPageCount());
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+
+        cb = new DocumentsCallbackImpl();
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachDocument(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testDocumentsWalker_prefetch() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 22;
+        int PAGE_SIZE = 5;
+        int EXPECTED_NUMBER_OF_PAGES = 5;
+
+        String nxql = "SELECT * FROM File";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-doc-" + i, true);
+        }
+        coreSession.save();
+        // The prefetch thread uses its own transaction: it must see the documents
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl();
+        DocumentsWalker dw = new DocumentsWalker(coreSession, nxql, PAGE_SIZE);
+        dw.setUseKeyset(true);
+        dw.setPrefetchPages(2);
+
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertTrue(cb.wasNotInterrupted());
+        assertEquals(EXPECTED_NUMBER_OF_PAGES, cb.getPageCount());
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+
+        // Interrupted: the prefetch thread is stopped
+        cb = new DocumentsCallbackImpl();
+        cb.setInterruptAfter(8);
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertTrue(cb.wasInterrupted());
+        assertEquals(2, cb.getPageCount());
+
+        // The prefetch thread uses the page size of the memory bounded mode: 1 document per page after the first one
+        cb = new DocumentsCallbackImpl();
+        dw.setMaxPageBytes(1);
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(1 + NUMBER_OF_DOCS - PAGE_SIZE, cb.getPageCount());
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testDocumentsWalker_parallel() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 22;
+        int PAGE_SIZE = 5;
+        int THREADS = 3;
+
+        String nxql = "SELECT * FROM File";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-doc-" + i, true);
+        }
+        coreSession.save();
+        // Consumer threads use their own transaction: they must see the documents
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger pages = new AtomicInteger();
+        final AtomicInteger sessionsOk = new AtomicInteger();
+        DocumentsCallback cb = new DocumentsCallback() {
+
+            @Override
+            public ReturnStatus callback(List<DocumentModel> inDocs) {
+                pages.incrementAndGet();
+                if (DocumentsWalker.getCurrentSession() != null) {
+                    sessionsOk.incrementAndGet();
+                }
+                for (DocumentModel doc : inDocs) {
+                    assertTrue(ids.add(doc.getId()));
+                }
+                return ReturnStatus.CONTINUE;
+            }
+
+            @Override
+            public ReturnStatus callback(DocumentModel inDoc) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void init() {
+                // Unused here
+            }
+
+            @Override
+            public void end(ReturnStatus inLastReturnStatus) {
+                assertEquals(ReturnStatus.CONTINUE, inLastReturnStatus);
+            }
+        };
+
+        DocumentsWalker dw = new DocumentsWalker(coreSession, nxql, PAGE_SIZE);
+        dw.setUseKeyset(true);
+        dw.runForEachPageParallel(cb, THREADS);
+
+        assertEquals(NUMBER_OF_DOCS, ids.size());
+        assertEquals(5, pages.get());
+        assertEquals(5, sessionsOk.get());
+        assertNull(DocumentsWalker.getCurrentSession());
+
+        // Every consumer fails: the error is thrown, the reader does not block
+        DocumentsCallback failingCb = new DocumentsCallback() {
+
+            @Override
+            public ReturnStatus callback(List<DocumentModel> inDocs) {
+                throw new RuntimeException("Failing on purpose");
+            }
+
+            @Override
+            public ReturnStatus callback(DocumentModel inDoc) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void init() {
+                // Unused here
+            }
+
+            @Override
+            public void end(ReturnStatus inLastReturnStatus) {
+                // Unused here
+            }
+        };
+        DocumentsWalker dw2 = new DocumentsWalker(coreSession, nxql, 1);
+        dw2.setUseKeyset(true);
+        try {
+            dw2.runForEachPageParallel(failingCb, THREADS);
+            fail("The error should have been thrown");
+        } catch (NuxeoException e) {
+            assertEquals("Failing on purpose", e.getCause().getMessage());
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testDocumentsWalker_stream() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 22;
+        int PAGE_SIZE = 5;
+
+        String nxql = "SELECT * FROM File";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-doc-" + i, true);
+        }
+        coreSession.save();
+
+        DocumentsWalker dw = new DocumentsWalker(coreSession, nxql, PAGE_SIZE);
+
+        Set<String> ids = new HashSet<String>();
+        try (Stream<DocumentModel> stream = dw.stream()) {
+            Iterator<DocumentModel> it = stream.iterator();
+            while (it.hasNext()) {
+                assertTrue(ids.add(it.next().getId()));
+            }
+        }
+        assertEquals(NUMBER_OF_DOCS, ids.size());
+
+        // Lazy: only the first page is needed here
+        try (Stream<DocumentModel> stream = dw.stream()) {
+            assertEquals(3, stream.limit(3).count());
+        }
+
+        // Parallel, split by pages. The pages are read in another transaction: it must see the documents
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+        dw.setUseKeyset(true);
+        try (Stream<DocumentModel> stream = dw.parallelStream()) {
+            assertTrue(stream.isParallel());
+            assertEquals(NUMBER_OF_DOCS, stream.map(DocumentModel::getId).distinct().count());
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testDocumentsWalker_memoryBounded() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 12;
+        int PAGE_SIZE = 5;
+
+        String nxql = "SELECT * FROM File";
+
+        // Each document holds a large property (~20KB as UTF-16 chars)
+        String bigDescription = StringUtils.repeat("0123456789", 1000);
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            DocumentModel doc = testUtils.createDocument("File", "test-doc-" + i, false);
+            doc.setPropertyValue("dc:description", bigDescription);
+            coreSession.saveDocument(doc);
+        }
+        coreSession.save();
+
+        // The estimate takes the values into account
+        DocumentModel doc = coreSession.query(nxql, 1).get(0);
+        assertTrue(DocumentSizeEstimator.estimateBytes(doc) > 2 * bigDescription.length());
+        assertTrue(DocumentSizeEstimator.estimateBytes(doc) < 50000);
+
+        // Budget for 2 documents per page
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl();
+        DocumentsWalker dw = new DocumentsWalker(coreSession, nxql, PAGE_SIZE);
+        dw.setMaxPageBytes(50000);
+
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachDocument(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertTrue(cb.wasNotInterrupted());
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+
+        // The first page has the requested size, the next ones are bounded by the budget
+        final List<Integer> pageSizes = new ArrayList<Integer>();
+        cb = new DocumentsCallbackImpl() {
+            @Override
+            public ReturnStatus callback(List<DocumentModel> inDocs) {
+                pageSizes.add(inDocs.size());
+                return super.callback(inDocs);
+            }
+        };
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+        assertEquals(Integer.valueOf(PAGE_SIZE), pageSizes.get(0));
+        assertTrue(pageSizes.size() >= 1 + (NUMBER_OF_DOCS - PAGE_SIZE) / 2);
+        for (int i = 1; i < pageSizes.size(); i++) {
+            assertTrue("Page #" + i + " has " + pageSizes.get(i) + " documents", pageSizes.get(i) <= 2);
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testAdaptivePageSizer() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        AdaptivePageSizer sizer = new AdaptivePageSizer(100, 1000, 10, 200);
+        sizer.setIncreaseStep(50);
+
+        // Fast: additive increase, up to the max
+        assertEquals(150, sizer.recordPage(100, 100, 100));
+        assertEquals(200, sizer.recordPage(100, 100, 150));
+        assertEquals(200, sizer.recordPage(100, 100, 200));
+        // Slow: divided by 2, down to the min
+        assertEquals(100, sizer.recordPage(800, 800, 200));
+        assertEquals(50, sizer.recordPage(800, 800, 100));
+        assertEquals(25, sizer.recordPage(800, 800, 50));
+        assertEquals(12, sizer.recordPage(800, 800, 25));
+        assertEquals(10, sizer.recordPage(800, 800, 12));
+        // Smaller pages (last one, or capped by a memory bound): the duration is scaled to the current size
+        assertEquals(10, sizer.recordPage(5000, 5000, 3));
+        sizer = new AdaptivePageSizer(100, 1000, 10, 200);
+        sizer.setIncreaseStep(50);
+        assertEquals(150, sizer.recordPage(100, 100, 20));
+        assertEquals(75, sizer.recordPage(300, 300, 20));
+        // Empty page: no change
+        assertEquals(75, sizer.recordPage(5000, 5000, 0));
+
+        // Walker using it: all documents are walked whatever the page sizes
+        int NUMBER_OF_DOCS = 22;
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-doc-" + i, true);
+        }
+        coreSession.save();
+
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl();
+        DocumentsWalker dw = new DocumentsWalker(coreSession, "SELECT * FROM File", 5);
+        dw.setAdaptivePageSize(60000);
+
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+        assertTrue(dw.getAdaptivePageSizer().getPageSize() > 5);
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testDocumentsWalker_noTotalCount() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        // A multiple of the page size: the last page is known to be the last one, no empty page
+        int NUMBER_OF_DOCS = 20;
+        int PAGE_SIZE = 5;
+        int EXPECTED_NUMBER_OF_PAGES = 4;
+
+        String nxql = "SELECT * FROM File";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-doc-" + i, true);
+        }
+        coreSession.save();
+
+        DocumentsCallbackImpl cb = new DocumentsCallbackImpl();
+        DocumentsWalker dw = new DocumentsWalker(coreSession, nxql, PAGE_SIZE);
+        dw.setComputeTotalCount(false);
+
+        testUtils.checkUniqueStrings_Start();
+        dw.runForEachPage(cb);
+        testUtils.checkUniqueStrings_Cleanup();
+        assertTrue(cb.wasNotInterrupted());
+        assertEquals(EXPECTED_NUMBER_OF_PAGES, cb.getPageCount());
+        assertEquals(NUMBER_OF_DOCS, cb.getDocumentCount());
+
+        testUtils.endMethod();
+    }
 }
@@ -19,6 +19,10 @@ package org.nuxeo.datademo.test;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -38,6 +42,9 @@ import org.nuxeo.datademo.RandomFirstLastNames.GENDER;
 import org.nuxeo.datademo.RandomUSZips;
 import org.nuxeo.datademo.RandomUSZips.USZip;
 import org.nuxeo.datademo.RandomVocabulary;
+import org.nuxeo.datademo.tools.ColumnsFile;
+import org.nuxeo.datademo.tools.PackedStringTable;
+import org.nuxeo.datademo.tools.ResourcesCompiler;
 import org.nuxeo.datademo.tools.SimpleNXQLDocumentsPageProvider;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
@@ -114,6 +121,12 @@ public class RandomValuesTest {
         assertNotNull(value);
         assertTrue(!value.isEmpty());
 
+        StringBuilder sb = new StringBuilder();
+        rfln.appendFirstName(GENDER.ANY, sb).append(' ');
+        rfln.appendLastName(sb);
+        assertTrue(sb.length() > 2);
+        assertTrue(sb.indexOf(" ") > 0);
+
         RandomFirstLastNames.release();
 
         testUtils.endMethod();
@@ -207,6 +220,15 @@ public class RandomValuesTest {
         
         value = ruz.getAZip("QWERTY");
         assertNull(value);
+
+        // Check the columns and the per-state index stay aligned
+        for (int i = 0; i < 500; i++) {
+            value = ruz.getAZip("DC");
+            assertEquals("DC", value.state);
+            assertTrue("Washington".equals(value.city) || "Pentagon".equals(value.city));
+            assertTrue(value.latitude > 38 && value.latitude < 39.5);
+            assertTrue(value.longitude > -78 && value.longitude < -76);
+        }
         
         RandomUSZips.release();
 
@@ -440,4 +462,166 @@ public class RandomValuesTest {
 
         testUtils.endMethod();
     }
+
+    @Test
+    public void testSimpleNXQLDocumentsPageProvider_scroll() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        String nxql = "SELECT * FROM File";
+
+        int NUMBER_OF_DOCS = 22;
+        int PAGE_SIZE = 5;
+        String EXPECTED_RESULTS = "[5, 5, 5, 5, 2]";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-hop-" + i, true);
+        }
+        coreSession.save();
+
+        // By page
+        SimpleNXQLDocumentsPageProvider myPP = new SimpleNXQLDocumentsPageProvider(coreSession, nxql, PAGE_SIZE,
+                true);
+        assertFalse(myPP.hasPreviousPage());
+        ArrayList<Integer> check = new ArrayList<Integer>();
+        testUtils.checkUniqueStrings_Start();
+        while (myPP.hasDocuments() && check.size() <= NUMBER_OF_DOCS) {
+            List<DocumentModel> docs = myPP.getDocuments();
+            check.add(docs.size());
+            testUtils.checkUniqueStrings_Add(docs);
+            myPP.nextPage();
+        }
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(EXPECTED_RESULTS, check.toString());
+
+        // Document per document, after going back to the first page
+        myPP.firstPage();
+        int countDocs = 0;
+        testUtils.checkUniqueStrings_Start();
+        while (myPP.hasDocument() && countDocs <= NUMBER_OF_DOCS) {
+            testUtils.checkUniqueStrings_Add(myPP.getDocument().getId());
+            myPP.nextDocument();
+            countDocs += 1;
+        }
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(NUMBER_OF_DOCS, countDocs);
+
+        // Forward only
+        try {
+            myPP.previousPage();
+            fail("previousPage() should not be available in scroll mode");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+
+        // The documents of the second batch are deleted once the cursor is opened: the batch is skipped, not the
+        // rest of the cursor
+        nxql = "SELECT * FROM File ORDER BY ecm:uuid";
+        List<DocumentModel> allDocs = coreSession.query(nxql);
+        myPP = new SimpleNXQLDocumentsPageProvider(coreSession, nxql, PAGE_SIZE, true);
+        myPP.firstQuery();
+        for (int i = PAGE_SIZE; i < 2 * PAGE_SIZE; i++) {
+            coreSession.removeDocument(allDocs.get(i).getRef());
+        }
+        coreSession.save();
+        check = new ArrayList<Integer>();
+        while (myPP.hasDocuments() && check.size() <= NUMBER_OF_DOCS) {
+            check.add(myPP.getDocuments().size());
+            myPP.nextPage();
+        }
+        assertEquals("[5, 5, 5, 2]", check.toString());
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testSimpleNXQLDocumentsPageProvider_noTotalCount() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        String nxql = "SELECT * FROM File";
+
+        int NUMBER_OF_DOCS = 22;
+        int PAGE_SIZE = 5;
+        String EXPECTED_RESULTS = "[5, 5, 5, 5, 2]";
+
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            testUtils.createDocument("File", "test-hop-" + i, true);
+        }
+        coreSession.save();
+
+        SimpleNXQLDocumentsPageProvider myPP = new SimpleNXQLDocumentsPageProvider(coreSession, nxql, PAGE_SIZE);
+        myPP.setComputeTotalCount(false);
+        ArrayList<Integer> check = new ArrayList<Integer>();
+        testUtils.checkUniqueStrings_Start();
+        while (myPP.hasDocuments() && check.size() <= NUMBER_OF_DOCS) {
+            List<DocumentModel> docs = myPP.getDocuments();
+            check.add(docs.size());
+            testUtils.checkUniqueStrings_Add(docs);
+            myPP.nextPage();
+        }
+        testUtils.checkUniqueStrings_Cleanup();
+        assertEquals(EXPECTED_RESULTS, check.toString());
+
+        // Backward navigation is still available
+        myPP.firstPage();
+        myPP.nextPage();
+        assertEquals(1, myPP.getCurrentPageIndex());
+        assertTrue(myPP.hasPreviousPage());
+        myPP.previousPage();
+        assertEquals(0, myPP.getCurrentPageIndex());
+        assertEquals(PAGE_SIZE, myPP.getDocuments().size());
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testPackedStringTable() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        PackedStringTable table = new PackedStringTable.Builder().add("Alpha").add("").add("Bravo East").build();
+        assertEquals(3, table.size());
+        assertEquals("Alpha", table.get(0));
+        assertEquals("", table.get(1));
+        assertEquals("Bravo East", table.get(2));
+        assertEquals(10, table.length(2));
+
+        StringBuilder sb = new StringBuilder();
+        table.appendTo(2, table.appendTo(0, sb).append('/'));
+        assertEquals("Alpha/Bravo East", sb.toString());
+
+        int idx = table.randomIndex();
+        assertTrue(idx >= 0 && idx < 3);
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testColumnsFile() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        String text = "35004\tAL\tAcmar\t33.584132\t-86.51557\n" + "35005\tAL\tAdamsville\t33.588437\t-86.959727\n"
+                + "99501\tAK\tAnchorage\t61.211571\t-149.876077\n";
+        ColumnsFile zips = ResourcesCompiler.compileUSZips(new BufferedReader(new StringReader(text)));
+
+        // Write then read back
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        zips.write(out);
+        ColumnsFile read = ColumnsFile.read(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(7, read.getColumnCount());
+
+        PackedStringTable states = read.getStrings(ResourcesCompiler.ZIPS_COL_STATES_POOL);
+        assertEquals(2, states.size());
+        int[] stateIdx = read.getInts(ResourcesCompiler.ZIPS_COL_STATE);
+        assertEquals("AL", states.get(stateIdx[1]));
+        assertEquals("AK", states.get(stateIdx[2]));
+        assertEquals("99501", read.getStrings(ResourcesCompiler.ZIPS_COL_ZIP).get(2));
+        PackedStringTable cities = read.getStrings(ResourcesCompiler.ZIPS_COL_CITIES_POOL);
+        assertEquals("Adamsville", cities.get(read.getInts(ResourcesCompiler.ZIPS_COL_CITY)[1]));
+        assertEquals(-149.876077, read.getDoubles(ResourcesCompiler.ZIPS_COL_LONGITUDE)[2], 0);
+
+        testUtils.endMethod();
+    }
 }
@@ -18,18 +18,28 @@ package org.nuxeo.datademo.test;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.nuxeo.datademo.SuppressedEventsReplayWorker;
 import org.nuxeo.datademo.tools.ListenersDisabler;
+import org.nuxeo.datademo.tools.SuppressedEventsJournal;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.EventService;
+import org.nuxeo.ecm.core.event.impl.EventServiceImpl;
 import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.work.api.WorkManager;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
 
 import com.google.inject.Inject;
 
@@ -100,4 +110,120 @@ public class TestListeneresDisabler {
         testUtils.endMethod();
     }
 
+    @Test
+    public void testDisableDubincoreScoped() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        ListenersDisabler ld = new ListenersDisabler(true);
+        ld.addListener(ListenersDisabler.DUBLINCORELISTENER_NAME);
+        ld.disableListeners();
+
+        // The listener is still enabled for the whole server...
+        EventServiceImpl eventService = (EventServiceImpl) Framework.getService(EventService.class);
+        assertTrue(eventService.getEventListener(ListenersDisabler.DUBLINCORELISTENER_NAME).isEnabled());
+        DocumentModel doc = testUtils.createDocument("File", "listeners-enabled", true);
+        assertNotNull(doc.getPropertyValue("dc:creator"));
+        assertNotNull(doc.getPropertyValue("dc:created"));
+
+        // ...but not for a prepared document
+        doc = coreSession.createDocumentModel(parentOfTestDocs.getPathAsString(), "dublincore-scoped", "File");
+        doc.setPropertyValue("dc:title", "dublincore-scoped");
+        ld.prepareDocument(doc);
+        doc = coreSession.createDocument(doc);
+        ld.restoreListeners();
+
+        assertEquals("dublincore-scoped", (String) doc.getPropertyValue("dc:title"));
+        assertNull(doc.getPropertyValue("dc:creator"));
+        assertNull(doc.getPropertyValue("dc:created"));
+        assertNull(doc.getPropertyValue("dc:modified"));
+        assertTrue(eventService.getEventListener(ListenersDisabler.DUBLINCORELISTENER_NAME).isEnabled());
+
+        // No listener is disabled for the whole server, a second call must still fail
+        ld.disableListeners();
+        try {
+            ld.disableListeners();
+            fail("The listeners are already disabled");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        ld.restoreListeners();
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testOverlappingDisablers() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        String name = ListenersDisabler.DUBLINCORELISTENER_NAME;
+        EventServiceImpl eventService = (EventServiceImpl) Framework.getService(EventService.class);
+
+        ListenersDisabler ld1 = new ListenersDisabler();
+        ld1.addListener(name);
+        ListenersDisabler ld2 = new ListenersDisabler();
+        ld2.addListener(name);
+
+        ld1.disableListeners();
+        ld2.disableListeners();
+        assertEquals(2, ListenersDisabler.getDisableCount(name));
+        assertFalse(eventService.getEventListener(name).isEnabled());
+
+        // Still disabled as long as ld2 did not restore it
+        ld1.restoreListeners();
+        assertEquals(1, ListenersDisabler.getDisableCount(name));
+        assertFalse(eventService.getEventListener(name).isEnabled());
+        DocumentModel doc = testUtils.createDocument("File", "dublincore-disabled", true);
+        assertNull(doc.getPropertyValue("dc:creator"));
+
+        ld2.restoreListeners();
+        assertEquals(0, ListenersDisabler.getDisableCount(name));
+        assertTrue(eventService.getEventListener(name).isEnabled());
+
+        // Restoring twice does nothing
+        ld2.restoreListeners();
+        assertTrue(eventService.getEventListener(name).isEnabled());
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testCaptureAndReplay() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        String name = ListenersDisabler.DUBLINCORELISTENER_NAME;
+
+        ListenersDisabler ld = new ListenersDisabler();
+        ld.addListener(name);
+        ld.setCapturedListeners(name);
+        ld.disableListeners();
+        DocumentModel doc = testUtils.createDocument("File", "dublincore-captured", true);
+        doc.setPropertyValue("dc:description", "modified");
+        doc = coreSession.saveDocument(ld.captureDocument(doc));
+        ld.restoreListeners();
+        assertNull(doc.getPropertyValue("dc:modified"));
+
+        // dclistener handles beforeDocumentModification only
+        SuppressedEventsJournal journal = ld.takeJournal();
+        assertNotNull(journal);
+        assertEquals(1, journal.getCount());
+        assertNull(ld.takeJournal());
+
+        coreSession.save();
+        TransactionHelper.commitOrRollbackTransaction();
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        workManager.schedule(new SuppressedEventsReplayWorker(journal.getFile().getAbsolutePath(),
+                Arrays.asList(name)));
+        assertTrue(workManager.awaitCompletion(20, TimeUnit.SECONDS));
+        TransactionHelper.startTransaction();
+
+        doc = coreSession.getDocument(doc.getRef());
+        assertNotNull(doc.getPropertyValue("dc:modified"));
+        assertFalse(journal.getFile().exists());
+
+        testUtils.endMethod();
+    }
+
 }
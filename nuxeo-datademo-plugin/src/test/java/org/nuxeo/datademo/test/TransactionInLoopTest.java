@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2015 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+
+package org.nuxeo.datademo.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.datademo.tools.DocumentSizeEstimator;
+import org.nuxeo.datademo.tools.ThresholdCommitPolicy;
+import org.nuxeo.datademo.tools.TokenBucket;
+import org.nuxeo.datademo.tools.TransactionInLoop;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class })
+@Deploy({ "nuxeo-datademo" })
+public class TransactionInLoopTest {
+
+    TestUtils testUtils;
+
+    protected DocumentModel parentOfTestDocs;
+
+    @Inject
+    CoreSession coreSession;
+
+    @Before
+    public void setUp() {
+
+        if (testUtils == null) {
+            testUtils = new TestUtils(coreSession);
+        }
+
+        parentOfTestDocs = coreSession.createDocumentModel("/",
+                "test-random-data", "Folder");
+        parentOfTestDocs.setPropertyValue("dc:title", "test-random-data");
+        parentOfTestDocs = coreSession.createDocument(parentOfTestDocs);
+        parentOfTestDocs = coreSession.saveDocument(parentOfTestDocs);
+
+        coreSession.save();
+
+        testUtils.setParentFolder(parentOfTestDocs);
+    }
+
+    @After
+    public void cleanup() {
+
+        coreSession.removeDocument(parentOfTestDocs.getRef());
+        coreSession.save();
+    }
+
+    @Test
+    public void testTransactionInLoop_batchSaves() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 12;
+        int COMMIT_MODULO = 5;
+
+        ArrayList<DocumentModel> docs = new ArrayList<DocumentModel>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            docs.add(testUtils.createDocument("File", "test-batch-" + i, true));
+        }
+        coreSession.save();
+
+        TransactionInLoop til = new TransactionInLoop(coreSession, COMMIT_MODULO);
+        til.setBatchSaves(true);
+        til.commitAndStartNewTransaction();
+        for (DocumentModel oneDoc : docs) {
+            oneDoc.setPropertyValue("dc:description", "batch " + oneDoc.getTitle());
+            til.saveDocumentAndCommitIfNeeded(oneDoc);
+        }
+        // The 2 last documents are still in the buffer
+        assertEquals(NUMBER_OF_DOCS % COMMIT_MODULO, til.getPendingCount());
+        til.commitAndStartNewTransaction();
+        assertEquals(0, til.getPendingCount());
+
+        for (DocumentModel oneDoc : docs) {
+            DocumentModel saved = coreSession.getDocument(oneDoc.getRef());
+            assertEquals("batch " + oneDoc.getTitle(), saved.getPropertyValue("dc:description"));
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testTransactionInLoop_commitPolicyAndRateLimiter() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        ThresholdCommitPolicy policy = new ThresholdCommitPolicy(10, 1000, 5000);
+        assertFalse(policy.shouldCommit(0, 5000, 10000));
+        assertFalse(policy.shouldCommit(5, 10, 100));
+        assertTrue(policy.shouldCommit(10, 10, 100));
+        assertTrue(policy.shouldCommit(5, 1000, 100));
+        assertTrue(policy.shouldCommit(5, 10, 5000));
+        assertTrue(policy.usesDirtyBytes());
+        assertTrue(ThresholdCommitPolicy.getDefaultMaxDurationMs() > 0);
+
+        int NUMBER_OF_DOCS = 10;
+        double DOCS_PER_SECOND = 20;
+
+        ArrayList<DocumentModel> docs = new ArrayList<DocumentModel>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            docs.add(testUtils.createDocument("File", "test-throttle-" + i, true));
+        }
+        coreSession.save();
+
+        // Only the modified values are counted
+        assertEquals(0, DocumentSizeEstimator.estimateDirtyBytes(docs.get(0)));
+        docs.get(0).setPropertyValue("dc:description", "throttled");
+        assertTrue(DocumentSizeEstimator.estimateDirtyBytes(docs.get(0)) >= 2 * "throttled".length());
+
+        // Commit on size only: every document is bigger than 1 byte
+        TransactionInLoop til = new TransactionInLoop(coreSession);
+        til.setCommitPolicy(new ThresholdCommitPolicy(0, 0, 1));
+        til.setRateLimiter(new TokenBucket(DOCS_PER_SECOND, 1));
+        til.commitAndStartNewTransaction();
+        long start = System.currentTimeMillis();
+        for (DocumentModel oneDoc : docs) {
+            oneDoc.setPropertyValue("dc:description", "throttled");
+            til.saveDocument(oneDoc);
+            til.incrementCounter();
+            assertTrue(til.shouldCommit());
+            til.commitAndStartNewTransaction();
+            assertFalse(til.shouldCommit());
+        }
+        long duration = System.currentTimeMillis() - start;
+        // 1 token available at start, then 1 every 50ms
+        assertTrue("Duration: " + duration, duration >= ((NUMBER_OF_DOCS - 1) * 1000 / DOCS_PER_SECOND) - 50);
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testTransactionInLoop_retryAndSkip() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 7;
+        int COMMIT_MODULO = 5;
+
+        ArrayList<DocumentModel> docs = new ArrayList<DocumentModel>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            docs.add(testUtils.createDocument("File", "test-retry-" + i, true));
+        }
+        coreSession.save();
+
+        // Remove one document: saving it will fail
+        DocumentModel poison = docs.get(2);
+        coreSession.removeDocument(poison.getRef());
+        coreSession.save();
+
+        TransactionInLoop til = new TransactionInLoop(coreSession, COMMIT_MODULO);
+        til.setMaxRetries(2);
+        til.setRetryBackoffMs(1);
+        til.commitAndStartNewTransaction();
+        for (DocumentModel oneDoc : docs) {
+            oneDoc.setPropertyValue("dc:description", "retried");
+            til.saveDocumentAndCommitIfNeeded(oneDoc);
+        }
+        til.commitAndStartNewTransaction();
+
+        assertEquals(1, til.getFailedDocIds().size());
+        assertEquals(poison.getId(), til.getFailedDocIds().get(0));
+        // The first documents of the window were written by the failed attempts (which cleared their dirty flags),
+        // then rolled back: the same instances must still be written by the retries
+        for (DocumentModel oneDoc : docs) {
+            if (oneDoc != poison) {
+                DocumentModel saved = coreSession.getDocument(oneDoc.getRef());
+                assertEquals("retried", saved.getPropertyValue("dc:description"));
+            }
+        }
+
+        testUtils.endMethod();
+    }
+}
@@ -23,9 +23,13 @@ import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -34,12 +38,19 @@ import org.junit.Ignore;
 import org.junit.runner.RunWith;
 import org.nuxeo.datademo.RandomDates;
 import org.nuxeo.datademo.UpdateAllDates;
+import org.nuxeo.datademo.UpdateAllDatesCheckpoint;
 import org.nuxeo.datademo.UpdateAllDatesWorker;
+import org.nuxeo.datademo.tools.DateFieldsPlanCache;
+import org.nuxeo.datademo.tools.XPathFieldInfo;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.api.model.Property;
+import org.nuxeo.ecm.core.schema.DocumentType;
+import org.nuxeo.ecm.core.schema.SchemaManager;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.core.test.TransactionalFeature;
 import org.nuxeo.ecm.core.work.api.WorkManager;
@@ -72,6 +83,9 @@ public class UpdateAllDatesTest {
     // are declared in doc-type-contrib.xml and test_dates_list.xsd
     protected static final String DOCTYPE_TEST_DOC = "TestDoc";
 
+    // Declared in doc-type-contrib.xml, extends TestDoc
+    protected static final String DOCTYPE_TEST_SUB_DOC = "TestSubDoc";
+
     // Fields are declared in /schemas/TestSchema.xsd
     protected static final String XPATH_DATES_LIST = "TestSchema:list_of_dates_main";
 
@@ -552,6 +566,352 @@ public class UpdateAllDatesTest {
         testUtils.endMethod();
     }
     
+    /*
+     * A document whose type inherits from another type with date fields must
+     * be updated only once.
+     */
+    @Test
+    public void testUpdateAllDates_SubType() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DAYS = 4;
+        long NUMBER_OF_MILLISECONDS = NUMBER_OF_DAYS * 24 * 3600000;
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        DocumentModel doc = testUtils.createDocument(DOCTYPE_TEST_SUB_DOC, "doc-subtype", true);
+        DocumentModel parentTypeDoc = testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-parenttype", true);
+        coreSession.save();
+        long originalMS = ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis();
+        long parentTypeOriginalMS = ((Calendar) parentTypeDoc.getPropertyValue("dc:created")).getTimeInMillis();
+
+        UpdateAllDates ual = new UpdateAllDates(coreSession, NUMBER_OF_DAYS);
+        ual.setDoLog(false);
+        ual.run();
+
+        doc = coreSession.getDocument(doc.getRef());
+        long ms = ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis();
+        assertEquals(NUMBER_OF_MILLISECONDS, ms - originalMS);
+
+        parentTypeDoc = coreSession.getDocument(parentTypeDoc.getRef());
+        ms = ((Calendar) parentTypeDoc.getPropertyValue("dc:created")).getTimeInMillis();
+        assertEquals(NUMBER_OF_MILLISECONDS, ms - parentTypeOriginalMS);
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testCountDocumentsPerType() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        for (int i = 0; i < 3; i++) {
+            testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-count-" + i, false);
+        }
+        testUtils.createDocument(DOCTYPE_TEST_SUB_DOC, "doc-count-sub", false);
+        coreSession.save();
+
+        UpdateAllDates ual = new UpdateAllDates(coreSession, 1);
+        HashMap<String, Long> counts = ual.countDocumentsPerType(
+                Arrays.asList(DOCTYPE_TEST_DOC, DOCTYPE_TEST_SUB_DOC, "Note"));
+
+        assertEquals(Long.valueOf(3), counts.get(DOCTYPE_TEST_DOC));
+        assertEquals(Long.valueOf(1), counts.get(DOCTYPE_TEST_SUB_DOC));
+        assertFalse(counts.containsKey("Note"));
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testDateFieldsPlanCache() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        SchemaManager sm = Framework.getService(SchemaManager.class);
+        DocumentType testDocType = sm.getDocumentType(DOCTYPE_TEST_DOC);
+
+        List<XPathFieldInfo> fields = DateFieldsPlanCache.getTypeDateFields(testDocType);
+        ArrayList<String> xpaths = new ArrayList<String>();
+        for (XPathFieldInfo info : fields) {
+            xpaths.add(info.getXPath());
+        }
+        assertTrue(xpaths.contains("dc:created"));
+        assertTrue(xpaths.contains(XPATH_DATES_LIST));
+        assertTrue(xpaths.contains(XPATH_COMPLEX_DATEFIELD_SIMPLE));
+        assertTrue(xpaths.contains(XPATH_COMPLEX_DATEFIELD_LIST));
+        assertTrue(xpaths.contains(XPATH_COMPLEX_MULTIVALUED + "/" + COMPLEX_MULTIVALUED_SIMPLE_DATE_FIELD));
+
+        // Computed once: same list returned, same list for the schema shared by several types
+        assertSame(fields, DateFieldsPlanCache.getTypeDateFields(testDocType));
+        assertSame(DateFieldsPlanCache.getSchemaDateFields(sm.getSchema("dublincore")),
+                DateFieldsPlanCache.getSchemaDateFields(sm.getSchema("dublincore")));
+
+        DateFieldsPlanCache.clear();
+        assertNotSame(fields, DateFieldsPlanCache.getTypeDateFields(testDocType));
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testUpdateAllDates_Projection() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 12;
+        int NUMBER_OF_DAYS = 4;
+        long NUMBER_OF_MILLISECONDS = NUMBER_OF_DAYS * 24 * 3600000;
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        HashMap<String, Long> originalCreated = new HashMap<String, Long>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            DocumentModel doc = testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-projection-" + i, true);
+            originalCreated.put(doc.getId(), ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis());
+        }
+        coreSession.save();
+
+        ArrayList<XPathFieldInfo> fields = new ArrayList<XPathFieldInfo>();
+        fields.add(new XPathFieldInfo("dc:created"));
+        assertTrue(UpdateAllDates.canUseProjection(fields));
+
+        ArrayList<XPathFieldInfo> listField = new ArrayList<XPathFieldInfo>();
+        listField.add(new XPathFieldInfo(XPATH_DATES_LIST, true));
+        assertFalse(UpdateAllDates.canUseProjection(listField));
+
+        UpdateAllDates ual = new UpdateAllDates(coreSession, NUMBER_OF_DAYS);
+        ual.setDoLog(false);
+        // Small pages, so several pages are fetched
+        ual.setDocsPerPage(5);
+        long count = ual.updateDocumentsWithProjection(coreSession, DOCTYPE_TEST_DOC, null, fields);
+        assertEquals(NUMBER_OF_DOCS, count);
+
+        for (String id : originalCreated.keySet()) {
+            DocumentModel doc = coreSession.getDocument(new IdRef(id));
+            long ms = ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis();
+            assertEquals(NUMBER_OF_MILLISECONDS, ms - originalCreated.get(id));
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testUpdateAllDates_Resume() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 10;
+        int NUMBER_OF_DAYS = 4;
+        long NUMBER_OF_MILLISECONDS = NUMBER_OF_DAYS * 24 * 3600000;
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        HashMap<String, Long> originalCreated = new HashMap<String, Long>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            DocumentModel doc = testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-resume-" + i, true);
+            originalCreated.put(doc.getId(), ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis());
+        }
+        coreSession.save();
+
+        // Simulate an interrupted run: half of the TestDoc were updated
+        ArrayList<String> ids = new ArrayList<String>(originalCreated.keySet());
+        Collections.sort(ids);
+        String lastId = ids.get((NUMBER_OF_DOCS / 2) - 1);
+        UpdateAllDatesCheckpoint checkpoint = new UpdateAllDatesCheckpoint(coreSession);
+        assertFalse(checkpoint.begin(NUMBER_OF_DAYS));
+        checkpoint.save(DOCTYPE_TEST_DOC, lastId);
+        coreSession.save();
+
+        // Cannot resume with another number of days
+        try {
+            new UpdateAllDatesCheckpoint(coreSession).begin(NUMBER_OF_DAYS + 1);
+            fail("Resuming with a different number of days should fail");
+        } catch (NuxeoException e) {
+            // Expected
+        }
+
+        UpdateAllDates ual = new UpdateAllDates(coreSession, NUMBER_OF_DAYS);
+        ual.setDoLog(false);
+        ual.setResumable(true);
+        ual.run();
+
+        for (String id : ids) {
+            DocumentModel doc = coreSession.getDocument(new IdRef(id));
+            long ms = ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis();
+            long expected = id.compareTo(lastId) <= 0 ? 0 : NUMBER_OF_MILLISECONDS;
+            assertEquals(expected, ms - originalCreated.get(id));
+        }
+
+        // Checkpoint removed once done
+        assertFalse(coreSession.exists(new PathRef("/" + UpdateAllDatesCheckpoint.DEFAULT_NAME)));
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testUpdateAllDates_SQL() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 20;
+        int NUMBER_OF_DAYS = 4;
+        int NUMBER_OF_DATES_PER_FIELD = 3;
+        long NUMBER_OF_MILLISECONDS = NUMBER_OF_DAYS * 24 * 3600000;
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        // ==========> Create documents. Store values for checking after update.
+        HashMap<String, Long> originalCreated = new HashMap<String, Long>();
+        HashMap<String, Long[]> originalListMS = new HashMap<String, Long[]>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            DocumentModel doc = testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-sql-" + i, false);
+
+            Calendar[] dates = RandomDates.buildDates(NUMBER_OF_DATES_PER_FIELD, null, 4, 10, false);
+            doc.setPropertyValue(XPATH_DATES_LIST, dates);
+            doc = coreSession.saveDocument(doc);
+
+            Long[] ms = new Long[NUMBER_OF_DATES_PER_FIELD];
+            for (int j = 0; j < NUMBER_OF_DATES_PER_FIELD; j++) {
+                ms[j] = dates[j].getTimeInMillis();
+            }
+            originalListMS.put(doc.getId(), ms);
+            originalCreated.put(doc.getId(), ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis());
+        }
+        coreSession.save();
+
+        // ==========> Update all docs
+        UpdateAllDates ual = new UpdateAllDates(coreSession, NUMBER_OF_DAYS);
+        ual.setDoLog(false);
+        ual.setUseSQL(true);
+        ual.run();
+
+        // ==========> Check dates have changed
+        for (String id : originalListMS.keySet()) {
+            DocumentModel doc = coreSession.getDocument(new IdRef(id));
+
+            Calendar created = (Calendar) doc.getPropertyValue("dc:created");
+            assertEquals(NUMBER_OF_MILLISECONDS, created.getTimeInMillis() - originalCreated.get(id));
+
+            Calendar[] c = (Calendar[]) doc.getPropertyValue(XPATH_DATES_LIST);
+            Long[] originalMS = originalListMS.get(id);
+            assertNotNull(c);
+            assertEquals(originalMS.length, c.length);
+            for (int i = 0; i < c.length; i++) {
+                assertEquals(NUMBER_OF_MILLISECONDS, c[i].getTimeInMillis() - originalMS[i].longValue());
+            }
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testUpdateAllDates_Threads() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 30;
+        int NUMBER_OF_DAYS = 4;
+        int NUMBER_OF_DATES_PER_FIELD = 3;
+        long NUMBER_OF_MILLISECONDS = NUMBER_OF_DAYS * 24 * 3600000;
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        // ==========> Create documents. Store values for checking after update.
+        HashMap<String, Long> originalCreated = new HashMap<String, Long>();
+        HashMap<String, Long[]> originalListMS = new HashMap<String, Long[]>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            DocumentModel doc = testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-threads-" + i, false);
+
+            Calendar[] dates = RandomDates.buildDates(NUMBER_OF_DATES_PER_FIELD, null, 4, 10, false);
+            doc.setPropertyValue(XPATH_DATES_LIST, dates);
+            doc = coreSession.saveDocument(doc);
+
+            Long[] ms = new Long[NUMBER_OF_DATES_PER_FIELD];
+            for (int j = 0; j < NUMBER_OF_DATES_PER_FIELD; j++) {
+                ms[j] = dates[j].getTimeInMillis();
+            }
+            originalListMS.put(doc.getId(), ms);
+            originalCreated.put(doc.getId(), ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis());
+        }
+        coreSession.save();
+        // The threads use their own sessions: they must see the documents
+        TransactionHelper.commitOrRollbackTransaction();
+        TransactionHelper.startTransaction();
+
+        // ==========> Update all docs, 3 threads
+        UpdateAllDates ual = new UpdateAllDates(coreSession, NUMBER_OF_DAYS);
+        ual.setDoLog(false);
+        ual.setThreads(3);
+        ual.run();
+
+        // ==========> Check each date was shifted exactly once
+        for (String id : originalListMS.keySet()) {
+            DocumentModel doc = coreSession.getDocument(new IdRef(id));
+
+            Calendar created = (Calendar) doc.getPropertyValue("dc:created");
+            assertEquals(NUMBER_OF_MILLISECONDS, created.getTimeInMillis() - originalCreated.get(id));
+
+            Calendar[] c = (Calendar[]) doc.getPropertyValue(XPATH_DATES_LIST);
+            Long[] originalMS = originalListMS.get(id);
+            assertEquals(originalMS.length, c.length);
+            for (int i = 0; i < c.length; i++) {
+                assertEquals(NUMBER_OF_MILLISECONDS, c[i].getTimeInMillis() - originalMS[i].longValue());
+            }
+        }
+
+        testUtils.endMethod();
+    }
+
+    @Test
+    public void testUpdateAllDates_Slices() throws Exception {
+
+        testUtils.startMethod(testUtils.getCurrentMethodName(new RuntimeException()));
+
+        int NUMBER_OF_DOCS = 20;
+        int NUMBER_OF_DAYS = 4;
+        long NUMBER_OF_MILLISECONDS = NUMBER_OF_DAYS * 24 * 3600000;
+
+        coreSession.removeChildren(parentOfTestDocs.getRef());
+        coreSession.save();
+
+        // ==========> Create documents. Store values for checking after update.
+        HashMap<String, Long> originalCreated = new HashMap<String, Long>();
+        for (int i = 1; i <= NUMBER_OF_DOCS; i++) {
+            DocumentModel doc = testUtils.createDocument(DOCTYPE_TEST_DOC, "doc-slices-" + i, true);
+            originalCreated.put(doc.getId(), ((Calendar) doc.getPropertyValue("dc:created")).getTimeInMillis());
+        }
+        coreSession.save();
+        // The workers use their own transaction
+        TransactionHelper.commitOrRollbackTransaction();
+
+        // ==========> Update all docs, 4 ranges of ids per type
+        UpdateAllDatesWorker worker = new UpdateAllDatesWorker(NUMBER_OF_DAYS);
+        worker.setSlicesPerType(4);
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        workManager.schedule(worker);
+        assertTrue(workManager.awaitCompletion(60, TimeUnit.SECONDS));
+        assertEquals(UpdateAllDatesWorker.UPDATE_ALL_DATES_DONE_STATUS, worker.getStatus());
+
+        TransactionHelper.startTransaction();
+
+        // ==========> Check each date was shifted exactly once
+        for (String id : originalCreated.keySet()) {
+            DocumentModel doc = coreSession.getDocument(new IdRef(id));
+            Calendar created = (Calendar) doc.getPropertyValue("dc:created");
+            assertEquals(NUMBER_OF_MILLISECONDS, created.getTimeInMillis() - originalCreated.get(id));
+        }
+
+        testUtils.endMethod();
+    }
+
     @Ignore
     public void testUpdateAllDates_SimpleField_worker() throws Exception {
 